@@ -0,0 +1,87 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Tick timing error of a Thread.sleep loop and of a {@link SequencerClock},
+ * both drawing a playhead column on a grid, idle and with every core busy.
+ *
+ * @author jip
+ *
+ */
+class ClockBench {
+    // midi clock resolution at 150 bpm: 60 ticks per second
+    static final double BPM = 150;
+    static final int SUBDIVISIONS = 24;
+    static final long MILLIS = 3000;
+
+    public static void main(String[] args) throws Exception {
+        SerialoscEmulator serialosc = new SerialoscEmulator();
+        MonomeDevice m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+        sleepLoop(m, "sleep loop idle");
+        clock(m, "clock idle");
+        Thread[] load = load();
+        sleepLoop(m, "sleep loop loaded");
+        clock(m, "clock loaded");
+        for (Thread t : load)
+            t.interrupt();
+        m.close();
+        serialosc.close();
+    }
+
+    static void draw(MonomeDevice m, long tick) {
+        int x = (int) (tick & 15);
+        m.grid.col((x + 15) & 15, 0, 0);
+        m.grid.col(x, 0, 0xff);
+    }
+
+    // the loop apps used to write: sleep one period, draw
+    static void sleepLoop(MonomeDevice m, String name) throws InterruptedException {
+        LatencyHistogram jitter = new LatencyHistogram();
+        double period = 60e9 / (BPM * SUBDIVISIONS);
+        long start = System.nanoTime(), end = start + MILLIS * 1000000L, due = start;
+        for (long tick = 0; System.nanoTime() < end; tick++) {
+            Thread.sleep((long) (period / 1000000));
+            due += (long) period;
+            draw(m, tick);
+            jitter.record(Math.abs(System.nanoTime() - due));
+        }
+        System.out.printf("%-28s jitter %s%n", name, jitter);
+    }
+
+    static void clock(final MonomeDevice m, String name) throws InterruptedException {
+        SequencerClock clock = new SequencerClock(BPM, SUBDIVISIONS);
+        clock.addDevice(m);
+        clock.addListener(new ClockListener() {
+            @Override
+            public void tick(long tick, long time) {
+                draw(m, tick);
+            }
+        });
+        clock.start();
+        Thread.sleep(MILLIS);
+        clock.stop();
+        System.out.printf("%-28s jitter %s, missed %d%n", name, clock.getJitter(), clock.getMissed());
+    }
+
+    // one busy thread per core
+    static Thread[] load() {
+        Thread[] ts = new Thread[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < ts.length; i++) {
+            ts[i] = new Thread() {
+                @Override
+                public void run() {
+                    long x = 0;
+                    while (!isInterrupted()) {
+                        x += System.nanoTime();
+                        if ((x & 0xfffff) == 0)
+                            LockSupport.parkNanos(1);
+                    }
+                }
+            };
+            ts[i].setDaemon(true);
+            ts[i].start();
+        }
+        return ts;
+    }
+}
@@ -0,0 +1,99 @@
+package jip.monome.serialosc;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Incoming /grid/key and /enc/delta decoded and dispatched to a listener per
+ * second, from datagrams already in memory (no socket involved). The
+ * listeners hand their arguments to a {@link Blackhole}.
+ *
+ * @author jip
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DecodeBench {
+    SerialoscEmulator serialosc;
+    MonomeDevice m;
+    final OscDecoder decoder = new OscDecoder();
+    final ByteBuffer[] keys = new ByteBuffer[256];
+    ByteBuffer delta;
+    int i;
+
+    @Setup
+    public void setup(final Blackhole bh) throws Exception {
+        serialosc = new SerialoscEmulator();
+        m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+        m.addListener(new GridListener() {
+            @Override
+            public void press(int x, int y, int state) {
+                bh.consume(x);
+                bh.consume(y);
+                bh.consume(state);
+            }
+        });
+        m.addListener(new EncListener() {
+            @Override
+            public void delta(int enc, int delta) {
+                bh.consume(enc);
+                bh.consume(delta);
+            }
+
+            @Override
+            public void press(int enc, int state) {
+            }
+        });
+        for (int k = 0; k < keys.length; k++)
+            keys[k] = message("/bench" + MonomeDevice.MSG_IN_GRID, k & 15, k >> 4, k & 1);
+        delta = message("/bench" + MonomeDevice.MSG_IN_ENCD, 1, -1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        m.close();
+        serialosc.close();
+    }
+
+    @Benchmark
+    public void gridKey() {
+        decoder.received = System.nanoTime();
+        decoder.decode(keys[i++ & 255], m.handler);
+    }
+
+    @Benchmark
+    public void encDelta() {
+        decoder.received = System.nanoTime();
+        decoder.decode(delta, m.handler);
+    }
+
+    /**
+     * encodes a message with int arguments
+     */
+    static ByteBuffer message(String address, int... args) {
+        byte[] addr = OscEncoder.address(address), tags = OscEncoder.intTags(args.length);
+        ByteBuffer b = ByteBuffer.allocate(addr.length + tags.length + 4 * args.length);
+        b.put(addr).put(tags);
+        for (int a : args)
+            b.putInt(a);
+        b.flip();
+        return b;
+    }
+}
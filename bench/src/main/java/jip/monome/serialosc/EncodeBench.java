@@ -0,0 +1,89 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Outgoing messages per second (encode and send to a loopback
+ * {@link SerialoscEmulator}) for the most used grid commands. Run with
+ * -prof gc for the bytes allocated per message.
+ *
+ * @author jip
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class EncodeBench {
+    static final int BATCH = 64;
+
+    SerialoscEmulator serialosc;
+    MonomeDevice m;
+    final int[] quad = new int[8];
+    final byte[] row = { (byte) 0xaa, 0x55 };
+    int i;
+
+    @Setup
+    public void setup() throws Exception {
+        serialosc = new SerialoscEmulator();
+        m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        m.close();
+        serialosc.close();
+    }
+
+    @Benchmark
+    public void gridSet() {
+        int n = i++;
+        m.grid.set(n & 15, (n >> 4) & 15, n & 1);
+    }
+
+    @Benchmark
+    public void gridMap() {
+        int n = i++;
+        quad[n & 7] = n & 0xff;
+        m.grid.map(0, 0, quad);
+    }
+
+    @Benchmark
+    public void gridMapBits() {
+        m.grid.map(0, 0, i++ * 0x9E3779B97F4A7C15L);
+    }
+
+    @Benchmark
+    public void gridRow() {
+        int n = i++;
+        row[0] = (byte) n;
+        m.grid.row(0, n & 15, row);
+    }
+
+    // a frame of messages sent as bundles
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void gridSetBatched() {
+        m.beginBatch();
+        for (int k = 0; k < BATCH; k++) {
+            int n = i++;
+            m.grid.set(n & 15, (n >> 4) & 15, n & 1);
+        }
+        m.flush();
+    }
+}
@@ -0,0 +1,126 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per frame of a 16x16 sequencer page made of a pattern, a moving
+ * playhead and a cursor, composed in int[][] arrays and sent with
+ * grid.map, and composed with {@link GridLayer}s into a
+ * {@link GridFrameBuffer}. Frames sent are batched, 64 per flush.
+ *
+ * @author jip
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LayerBench {
+    static final int FRAMES = 64;
+
+    SerialoscEmulator serialosc;
+    MonomeDevice m;
+    final int[] rows = new int[16];
+    GridFrameBuffer fb;
+    GridLayer pattern, playhead, cursor;
+    int i;
+
+    @Setup
+    public void setup() throws Exception {
+        serialosc = new SerialoscEmulator();
+        m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+        for (int y = 0; y < 16; y++)
+            rows[y] = (int) ((y * 0x9E3779B97F4A7C15L) >>> 48);
+
+        fb = m.getFrameBuffer();
+        pattern = new GridLayer(16, 16);
+        playhead = new GridLayer(16, 16);
+        cursor = new GridLayer(16, 16);
+        pattern.setRows(rows);
+        playhead.rect(0, 0, 1, 16, 1);
+        cursor.set(3, 5, 1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        m.close();
+        serialosc.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void arraysComposeMap() {
+        m.beginBatch();
+        for (int f = 0; f < FRAMES; f++) {
+            int n = i++;
+            int[][] frame = new int[16][16];
+            for (int y = 0; y < 16; y++) {
+                for (int x = 0; x < 16; x++) {
+                    frame[y][x] = (rows[y] >> x) & 1;
+                    if (x == (n & 15))
+                        frame[y][x] ^= 1;
+                    if (x == 3 && y == 5)
+                        frame[y][x] = 1;
+                }
+            }
+            for (int qy = 0; qy < 16; qy += 8) {
+                for (int qx = 0; qx < 16; qx += 8) {
+                    int[] masks = new int[8];
+                    for (int r = 0; r < 8; r++)
+                        for (int c = 0; c < 8; c++)
+                            masks[r] |= frame[qy + r][qx + c] << c;
+                    m.grid.map(qx, qy, masks);
+                }
+            }
+        }
+        m.flush();
+    }
+
+    @Benchmark
+    public GridFrameBuffer layersCompose() {
+        playhead.rotate(1, 0);
+        fb.draw(pattern, GridLayer.COPY);
+        fb.draw(playhead, GridLayer.XOR);
+        fb.draw(cursor, GridLayer.OR);
+        return fb;
+    }
+
+    // a still frame: nothing to send
+    @Benchmark
+    public GridFrameBuffer layersComposeDiff() {
+        fb.draw(pattern, GridLayer.COPY);
+        fb.draw(playhead, GridLayer.XOR);
+        fb.draw(cursor, GridLayer.OR);
+        fb.commit();
+        return fb;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void layersComposeCommit() {
+        m.beginBatch();
+        for (int f = 0; f < FRAMES; f++) {
+            playhead.rotate(1, 0);
+            fb.draw(pattern, GridLayer.COPY);
+            fb.draw(playhead, GridLayer.XOR);
+            fb.draw(cursor, GridLayer.OR);
+            fb.commit();
+        }
+        m.flush();
+    }
+}
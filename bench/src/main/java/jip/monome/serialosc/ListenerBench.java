@@ -0,0 +1,66 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Latency of a fast key listener sharing the device with a listener that
+ * blocks (1ms every 10 events, like a slow MIDI or file write), with every
+ * listener run inline and with each listener on its own executor queue.
+ *
+ * @author jip
+ *
+ */
+class ListenerBench {
+    static final int RATE = 2000, EVENTS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        run(false);
+        run(true);
+    }
+
+    static void run(boolean queued) throws Exception {
+        SerialoscEmulator serialosc = new SerialoscEmulator();
+        MonomeDevice m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+        ExecutorService executor = EventQueue.newListenerExecutor();
+        final long[] sent = new long[1];
+        final LatencyHistogram fast = new LatencyHistogram();
+        GridListener slow = new GridListener() {
+            int n;
+
+            @Override
+            public void press(int x, int y, int state) {
+                if (++n % 10 == 0)
+                    LockSupport.parkNanos(1000000);
+            }
+        };
+        GridListener quick = new GridListener() {
+            @Override
+            public void press(int x, int y, int state) {
+                fast.record(System.nanoTime() - sent[0]);
+            }
+        };
+        if (queued) {
+            m.addListener(slow, executor);
+            m.addListener(quick, executor);
+        } else {
+            m.addListener(slow);
+            m.addListener(quick);
+        }
+
+        long period = 1000000000L / RATE, next = System.nanoTime();
+        for (int i = 0; i < EVENTS; i++) {
+            while (System.nanoTime() < next)
+                LockSupport.parkNanos(next - System.nanoTime());
+            next += period;
+            sent[0] = System.nanoTime();
+            // the path of a decoded /grid/key
+            m.event(MonomeDevice.EVENT_KEY, i & 15, (i >> 4) & 15, 1, 0, sent[0]);
+        }
+        Thread.sleep(100);
+        System.out.printf("%-28s fast listener %s%n", queued ? "listeners on executor" : "listeners inline", fast);
+        executor.shutdown();
+        m.close();
+        serialosc.close();
+    }
+}
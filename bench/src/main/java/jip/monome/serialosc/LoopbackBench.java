@@ -0,0 +1,80 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Round trip latency over loopback: a /grid/led/set goes out, a
+ * {@link SerialoscEmulator} answers with a /grid/key, and the benchmark
+ * returns when the listener has been called.
+ *
+ * @author jip
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class LoopbackBench {
+    // an answer later than this is lost
+    static final long TIMEOUT = 100000000L;
+
+    SerialoscEmulator serialosc;
+    MonomeDevice m;
+    // written by the receive thread only
+    volatile int answers;
+    int i;
+
+    @Setup
+    public void setup() throws Exception {
+        serialosc = new SerialoscEmulator();
+        m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+        if (!m.awaitReady(2, TimeUnit.SECONDS))
+            throw new IllegalStateException("emulator not ready");
+        // every led message is answered with a key press
+        serialosc.changed = new Runnable() {
+            @Override
+            public void run() {
+                serialosc.key(0, 0, 1);
+            }
+        };
+        m.addListener(new GridListener() {
+            @Override
+            public void press(int x, int y, int state) {
+                answers++;
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() {
+        m.close();
+        serialosc.close();
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        int before = answers, n = i++;
+        long deadline = System.nanoTime() + TIMEOUT;
+        m.grid.set(n & 15, (n >> 4) & 15, n & 1);
+        int a;
+        while ((a = answers) == before) {
+            if (System.nanoTime() > deadline)
+                throw new IllegalStateException("no answer in " + TIMEOUT / 1000000 + "ms");
+        }
+        return a;
+    }
+}
@@ -0,0 +1,53 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Key and encoder storms from the serialosc emulator: events received by
+ * the app against events sent, and latency from a key press to the led
+ * echoing it.
+ *
+ * @author jip
+ *
+ */
+class StormBench {
+    static final int[] KEY_RATES = { 1000, 10000, 50000 };
+    static final long DURATION = 3000;
+
+    public static void main(String[] args) throws Exception {
+        for (int rate : KEY_RATES) {
+            SerialoscEmulator serialosc = new SerialoscEmulator();
+            final MonomeDevice m = new MonomeDevice(serialosc.getAddress(), "/bench", "127.0.0.1", 0);
+            final AtomicLong events = new AtomicLong();
+            m.addListener(new GridListener() {
+                @Override
+                public void press(int x, int y, int state) {
+                    events.incrementAndGet();
+                    m.grid.set(x, y, state);
+                }
+            });
+            m.addListener(new EncListener() {
+                @Override
+                public void delta(int enc, int delta) {
+                    events.incrementAndGet();
+                }
+
+                @Override
+                public void press(int enc, int state) {
+                }
+            });
+            // let the emulator learn the app port
+            Thread.sleep(100);
+            serialosc.startStorm(rate, rate, 0);
+            Thread.sleep(DURATION);
+            serialosc.stopStorm();
+            Thread.sleep(100);
+            long sent = serialosc.getSent();
+            System.out.printf("%-28s sent=%d received=%d lost=%.2f%% skipped=%d echo %s%n", "storm " + rate + "/s",
+                    sent, events.get(), 100.0 * (sent - events.get()) / sent, serialosc.getNotSent(),
+                    serialosc.getEchoLatency());
+            m.close();
+            serialosc.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package jip.monome.serialosc;
+
+public interface ClockListener {
+    /**
+     * called by a {@link SequencerClock} ahead of every tick; the grid and
+     * ring commands sent from here go out together when the tick is due
+     *
+     * @param tick
+     *            ticks since the clock started, counting the missed ones
+     * @param time
+     *            when the tick is due, in {@link System#nanoTime()} units
+     */
+    public void tick(long tick, long time);
+}
@@ -0,0 +1,157 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.logging.Logger;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * Keeps a device usable across replugs and focus losses.
+ *
+ * When bonjour resolves the device again (same service name or same serial
+ * id) at a new address, the device is pointed there. When the device comes
+ * back, or when another app takes its port or prefix and refocus is allowed,
+ * the supervisor takes the focus again and replays the last led, ring and
+ * tilt state, so the app doesn't have to repaint.
+ *
+ * @author jip
+ *
+ */
+public class ConnectionSupervisor implements DiscoveryListener {
+    static final Logger logger = Logger.getLogger(ConnectionSupervisor.class.getName());
+
+    // min time between two focus recoveries, so two apps don't fight forever
+    public static final long DEFAULT_REFOCUS_INTERVAL = 1000;
+
+    private final MonomeZeroconf zeroconf;
+    private final MonomeDevice device;
+
+    private volatile boolean refocus;
+    private volatile long refocusInterval = DEFAULT_REFOCUS_INTERVAL;
+    private volatile boolean connected = true;
+    private long lastRefocus;
+
+    private volatile long recoveries, lastRecoveryTime;
+
+    /**
+     * @param zeroconf
+     *            the discovery service to watch, or null to watch the focus
+     *            only
+     * @param device
+     */
+    public ConnectionSupervisor(MonomeZeroconf zeroconf, MonomeDevice device) {
+        this.zeroconf = zeroconf;
+        this.device = device;
+    }
+
+    public void start() {
+        device.supervisor = this;
+        if (zeroconf != null)
+            zeroconf.addDiscoveryListener(this);
+    }
+
+    public void stop() {
+        if (zeroconf != null)
+            zeroconf.removeDiscoveryListener(this);
+        if (device.supervisor == this)
+            device.supervisor = null;
+    }
+
+    /**
+     * takes the focus back when another app takes it (off by default)
+     *
+     * @param refocus
+     */
+    public void setRefocus(boolean refocus) {
+        this.refocus = refocus;
+    }
+
+    /**
+     * @param millis
+     *            min time between two focus recoveries
+     */
+    public void setRefocusInterval(long millis) {
+        this.refocusInterval = millis;
+    }
+
+    /**
+     * @return false while the device service is gone
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public long getRecoveries() {
+        return recoveries;
+    }
+
+    /**
+     * @return nanoseconds taken by the last recovery, from the event to the
+     *         replayed state being sent
+     */
+    public long getLastRecoveryTime() {
+        return lastRecoveryTime;
+    }
+
+    private boolean matches(ServiceInfo info) {
+        String service = info.getName();
+        if (device.name != null && device.name.equals(service))
+            return true;
+        // serialosc service names end with the serial id, e.g. "monome 40h (m40h0123)"
+        String id = device.getId();
+        return id != null && service.contains("(" + id + ")");
+    }
+
+    // DiscoveryListener interface
+    @Override
+    public void resolved(ServiceInfo info) {
+        if (!matches(info) || info.getInetAddresses().length == 0)
+            return;
+        InetSocketAddress address = new InetSocketAddress(info.getInetAddresses()[0], info.getPort());
+        if (connected && address.equals(device.getTarget()))
+            return;
+        logger.info("Monome back: " + info.getName());
+        recover(address);
+    }
+
+    @Override
+    public void removed(ServiceInfo info) {
+        if (matches(info)) {
+            logger.info("Monome gone: " + info.getName());
+            connected = false;
+        }
+    }
+
+    /**
+     * called from the receive thread when another app takes the device
+     */
+    void focusLost() {
+        if (!refocus || !connected)
+            return;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastRefocus < refocusInterval)
+                return;
+            lastRefocus = now;
+        }
+        recover(null);
+    }
+
+    private synchronized void recover(InetSocketAddress address) {
+        long start = System.nanoTime();
+        if (address != null)
+            device.retarget(address);
+        try {
+            device.setFocus();
+        } catch (IOException e) {
+            logger.warning("Couldn't take focus: " + e.getMessage());
+            return;
+        }
+        device.requestInfo();
+        device.replay();
+        connected = true;
+        recoveries++;
+        lastRecoveryTime = System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,257 @@
+package jip.monome.serialosc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Remembers, on disk, where each device was last found and what it looked
+ * like (serialosc host and port, serial id and grid size), so an app can
+ * connect and draw at startup without waiting for bonjour or /sys/info.
+ *
+ * Entries are keyed by bonjour service name, or by serialosc address for
+ * devices connected directly, and are written when a device becomes ready
+ * (see {@link MonomeDevice#whenReady()}). The file is only written when
+ * the details change, from a background thread, since devices become ready
+ * again on the receive thread after every reconnection. The file is a plain
+ * properties file; a cached address may be stale, so warm started devices should still
+ * be confirmed against bonjour (see
+ * {@link MonomeZeroconf#connectCached(DeviceInfoCache, String, String, String, int)}).
+ *
+ * @author jip
+ *
+ */
+public class DeviceInfoCache {
+    public static final String DEFAULT_FILE = ".serialosc" + File.separator + "devices.properties";
+
+    // writes the files off the receive thread, one at a time
+    private static final Executor writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "serialosc-cache");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private final File file;
+    private final Properties props = new Properties();
+    // a write is scheduled and hasn't copied props yet, guarded by this
+    private boolean savePending;
+
+    /**
+     * a cache in the user home directory
+     */
+    public DeviceInfoCache() {
+        this(new File(System.getProperty("user.home"), DEFAULT_FILE));
+    }
+
+    public DeviceInfoCache(File file) {
+        this.file = file;
+        if (!file.exists())
+            return;
+        InputStream is = null;
+        try {
+            is = new FileInputStream(file);
+            props.load(is);
+        } catch (IOException e) {
+            MonomeZeroconf.logger.warning("Couldn't read device cache " + file + ": " + e.getMessage());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param name
+     *            a bonjour service name or a "host:port" serialosc address
+     * @return the last known details of the device, or null
+     */
+    public synchronized Entry get(String name) {
+        String host = props.getProperty(name + ".host");
+        if (host == null)
+            return null;
+        try {
+            return new Entry(name, host, Integer.parseInt(props.getProperty(name + ".port")),
+                    props.getProperty(name + ".id"), Integer.parseInt(props.getProperty(name + ".sizex", "0")),
+                    Integer.parseInt(props.getProperty(name + ".sizey", "0")),
+                    Long.parseLong(props.getProperty(name + ".time", "0")));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the device that was ready last, or null
+     */
+    public synchronized Entry getLatest() {
+        Entry latest = null;
+        for (String key : props.stringPropertyNames()) {
+            if (!key.endsWith(".host"))
+                continue;
+            Entry e = get(key.substring(0, key.length() - ".host".length()));
+            if (e != null && (latest == null || e.time > latest.time))
+                latest = e;
+        }
+        return latest;
+    }
+
+    /**
+     * records the current details of a device, and writes the file in the
+     * background if they changed
+     *
+     * @param device
+     */
+    public void put(MonomeDevice device) {
+        InetSocketAddress target = device.getTarget();
+        String name = key(device);
+        synchronized (this) {
+            boolean changed = set(name + ".host", target.getAddress().getHostAddress());
+            changed |= set(name + ".port", Integer.toString(target.getPort()));
+            if (device.getId() != null)
+                changed |= set(name + ".id", device.getId());
+            changed |= set(name + ".sizex", Integer.toString(device.getSizeX()));
+            changed |= set(name + ".sizey", Integer.toString(device.getSizeY()));
+            // written with the next change
+            props.setProperty(name + ".time", Long.toString(System.currentTimeMillis()));
+            if (changed)
+                saveLater();
+        }
+    }
+
+    public synchronized void remove(String name) {
+        for (String field : new String[] { "host", "port", "id", "sizex", "sizey", "time" })
+            props.remove(name + "." + field);
+        saveLater();
+    }
+
+    // returns true if the value changed
+    private boolean set(String key, String value) {
+        return !value.equals(props.setProperty(key, value));
+    }
+
+    static String key(MonomeDevice device) {
+        if (device.name != null)
+            return device.name;
+        InetSocketAddress target = device.getTarget();
+        return target.getAddress().getHostAddress() + ":" + target.getPort();
+    }
+
+    // called holding the lock; writes coming in while one is pending are
+    // written with it
+    private void saveLater() {
+        if (savePending)
+            return;
+        savePending = true;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                Properties copy;
+                synchronized (DeviceInfoCache.this) {
+                    savePending = false;
+                    copy = (Properties) props.clone();
+                }
+                save(copy);
+            }
+        });
+    }
+
+    private void save(Properties props) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists())
+            dir.mkdirs();
+        // write aside and rename, so a crash never leaves a truncated cache
+        File tmp = new File(file.getPath() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(tmp);
+            props.store(os, "serialosc devices");
+            os.close();
+            os = null;
+            if (!tmp.renameTo(file)) {
+                file.delete();
+                if (!tmp.renameTo(file))
+                    throw new IOException("couldn't rename " + tmp);
+            }
+        } catch (IOException e) {
+            MonomeZeroconf.logger.warning("Couldn't write device cache " + file + ": " + e.getMessage());
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    // Do nothing
+                }
+            }
+        }
+    }
+
+    /**
+     * last known details of a device
+     */
+    public static class Entry {
+        final String name, host, id;
+        final int port, sizex, sizey;
+        final long time;
+
+        Entry(String name, String host, int port, String id, int sizex, int sizey, long time) {
+            this.name = name;
+            this.host = host;
+            this.port = port;
+            this.id = id;
+            this.sizex = sizex;
+            this.sizey = sizey;
+            this.time = time;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(host, port);
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public int getSizeX() {
+            return sizex;
+        }
+
+        public int getSizeY() {
+            return sizey;
+        }
+
+        /**
+         * @return when the device was last ready, in milliseconds since the
+         *         epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + id + ") " + host + ":" + port + " " + sizex + "x" + sizey;
+        }
+    }
+}
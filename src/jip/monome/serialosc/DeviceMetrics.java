@@ -0,0 +1,225 @@
+package jip.monome.serialosc;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Traffic, errors and dispatch times of a device.
+ *
+ * Counters are striped (LongAdder) and histograms lock free, so the send,
+ * receive and dispatch paths never block on them. Messages are counted by
+ * address family: grid (leds and keys), ring (arc leds and encoders), tilt,
+ * and sys. Outgoing messages are counted when handed to the socket, after
+ * the scheduler has coalesced them.
+ *
+ * Can be published as an MXBean with {@link #register()}.
+ *
+ * @author jip
+ *
+ */
+public class DeviceMetrics implements DeviceMetricsMXBean {
+    public static final int GRID = 0, RING = 1, TILT = 2, SYS = 3;
+    static final String[] FAMILIES = { "grid", "ring", "tilt", "sys" };
+
+    private final MonomeDevice device;
+    private final LongAdder[] messagesOut = adders(), bytesOut = adders(), messagesIn = adders(),
+            bytesIn = adders();
+    private final LongAdder sendErrors = new LongAdder();
+    private final LatencyHistogram[] dispatch = new LatencyHistogram[FAMILIES.length];
+    private ObjectName name;
+
+    DeviceMetrics(MonomeDevice device) {
+        this.device = device;
+        for (int f = 0; f < dispatch.length; f++)
+            dispatch[f] = new LatencyHistogram();
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[FAMILIES.length];
+        for (int f = 0; f < a.length; f++)
+            a[f] = new LongAdder();
+        return a;
+    }
+
+    // hot path
+
+    void sent(int family, int bytes) {
+        messagesOut[family].increment();
+        bytesOut[family].add(bytes);
+    }
+
+    void received(int family, int bytes) {
+        messagesIn[family].increment();
+        bytesIn[family].add(bytes);
+    }
+
+    void sendError() {
+        sendErrors.increment();
+    }
+
+    void dispatched(int family, long nanos) {
+        dispatch[family].record(nanos);
+    }
+
+    // per family
+
+    public long getMessagesOut(int family) {
+        return messagesOut[family].sum();
+    }
+
+    public long getBytesOut(int family) {
+        return bytesOut[family].sum();
+    }
+
+    public long getMessagesIn(int family) {
+        return messagesIn[family].sum();
+    }
+
+    public long getBytesIn(int family) {
+        return bytesIn[family].sum();
+    }
+
+    /**
+     * @param family
+     *            {@link #GRID} for keys, {@link #RING} for encoders or
+     *            {@link #TILT}
+     * @return time spent in the listeners per event
+     */
+    public LatencyHistogram getDispatchTime(int family) {
+        return dispatch[family];
+    }
+
+    // MXBean interface
+
+    private static Map<String, Long> map(LongAdder[] a) {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int f = 0; f < a.length; f++)
+            m.put(FAMILIES[f], a[f].sum());
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getMessagesOut() {
+        return map(messagesOut);
+    }
+
+    @Override
+    public Map<String, Long> getBytesOut() {
+        return map(bytesOut);
+    }
+
+    @Override
+    public Map<String, Long> getMessagesIn() {
+        return map(messagesIn);
+    }
+
+    @Override
+    public Map<String, Long> getBytesIn() {
+        return map(bytesIn);
+    }
+
+    @Override
+    public long getSendErrors() {
+        return sendErrors.sum();
+    }
+
+    @Override
+    public Map<String, Long> getDispatchCount() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int f = 0; f < SYS; f++)
+            m.put(FAMILIES[f], dispatch[f].getCount());
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getDispatchMeanNanos() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int f = 0; f < SYS; f++)
+            m.put(FAMILIES[f], (long) dispatch[f].getMean());
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getDispatchP99Nanos() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int f = 0; f < SYS; f++)
+            m.put(FAMILIES[f], dispatch[f].getPercentile(99));
+        return m;
+    }
+
+    @Override
+    public Map<String, Long> getDispatchMaxNanos() {
+        Map<String, Long> m = new LinkedHashMap<String, Long>();
+        for (int f = 0; f < SYS; f++)
+            m.put(FAMILIES[f], dispatch[f].getMax());
+        return m;
+    }
+
+    /**
+     * @return events waiting for the dispatch thread, 0 when dispatching on
+     *         the receive thread
+     */
+    @Override
+    public int getQueueDepth() {
+        EventQueue q = device.events;
+        return q != null ? q.getDepth() : 0;
+    }
+
+    @Override
+    public long getQueueDropped() {
+        EventQueue q = device.events;
+        return q != null ? q.getDropped() : 0;
+    }
+
+    @Override
+    public boolean isFocus() {
+        return device.isFocus();
+    }
+
+    @Override
+    public void reset() {
+        for (int f = 0; f < FAMILIES.length; f++) {
+            messagesOut[f].reset();
+            bytesOut[f].reset();
+            messagesIn[f].reset();
+            bytesIn[f].reset();
+            dispatch[f].reset();
+        }
+        sendErrors.reset();
+    }
+
+    // JMX
+
+    /**
+     * publishes these metrics in the platform MBean server, as
+     * jip.monome.serialosc:type=MonomeDevice,prefix="..."
+     *
+     * @throws JMException
+     */
+    public synchronized void register() throws JMException {
+        if (name != null)
+            return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName n = new ObjectName("jip.monome.serialosc:type=MonomeDevice,prefix="
+                + ObjectName.quote(device.getPrefix()));
+        server.registerMBean(this, n);
+        name = n;
+    }
+
+    public synchronized void unregister() {
+        if (name == null)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // Do nothing
+        }
+        name = null;
+    }
+}
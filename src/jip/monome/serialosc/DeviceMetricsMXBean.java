@@ -0,0 +1,38 @@
+package jip.monome.serialosc;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link DeviceMetrics}; maps are keyed by address family
+ * (grid, ring, tilt, sys).
+ *
+ * @author jip
+ *
+ */
+public interface DeviceMetricsMXBean {
+    public Map<String, Long> getMessagesOut();
+
+    public Map<String, Long> getBytesOut();
+
+    public Map<String, Long> getMessagesIn();
+
+    public Map<String, Long> getBytesIn();
+
+    public long getSendErrors();
+
+    public Map<String, Long> getDispatchCount();
+
+    public Map<String, Long> getDispatchMeanNanos();
+
+    public Map<String, Long> getDispatchP99Nanos();
+
+    public Map<String, Long> getDispatchMaxNanos();
+
+    public int getQueueDepth();
+
+    public long getQueueDropped();
+
+    public boolean isFocus();
+
+    public void reset();
+}
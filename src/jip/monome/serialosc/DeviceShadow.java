@@ -0,0 +1,194 @@
+package jip.monome.serialosc;
+
+/**
+ * Last led, ring and tilt state sent to a device, kept to repaint it after a
+ * reconnection or a focus loss without the app having to redraw.
+ *
+ * Grid leds are kept both as on/off bits (one long per 8x8 quad) and as
+ * levels; the kind of the last led command decides which one is replayed.
+ *
+ * @author jip
+ *
+ */
+class DeviceShadow {
+    // largest grid and arc served
+    static final int MAX_WIDTH = 32, MAX_HEIGHT = 32, MAX_ENCODERS = 8, MAX_SENSORS = 8;
+    private static final int QUADS_X = MAX_WIDTH >> 3, QUADS_Y = MAX_HEIGHT >> 3;
+
+    private final long[] quads = new long[QUADS_X * QUADS_Y];
+    private final byte[] levels = new byte[QUADS_X * QUADS_Y * 64];
+    private boolean levelMode, touched;
+    private int intensity = -1;
+
+    private final byte[] rings = new byte[MAX_ENCODERS * 64];
+    private int ringsTouched;
+
+    private int tiltTouched, tiltActive;
+
+    // on/off leds
+
+    synchronized void set(int x, int y, int s) {
+        if (x < 0 || y < 0 || x >= MAX_WIDTH || y >= MAX_HEIGHT)
+            return;
+        int q = (y >> 3) * QUADS_X + (x >> 3);
+        long bit = 1L << (((y & 7) << 3) | (x & 7));
+        quads[q] = s != 0 ? quads[q] | bit : quads[q] & ~bit;
+        levels[levelIndex(x, y)] = (byte) (s != 0 ? GridLevelBuffer.MAX_LEVEL : 0);
+        levelMode = false;
+        touched = true;
+    }
+
+    synchronized void all(int s) {
+        for (int q = 0; q < quads.length; q++)
+            quads[q] = s != 0 ? -1L : 0L;
+        byte l = (byte) (s != 0 ? GridLevelBuffer.MAX_LEVEL : 0);
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = l;
+        levelMode = false;
+        touched = true;
+    }
+
+    synchronized void row(int xoff, int y, int mask) {
+        for (int c = 0; c < 8; c++)
+            set(xoff + c, y, (mask >> c) & 1);
+    }
+
+    synchronized void col(int x, int yoff, int mask) {
+        for (int r = 0; r < 8; r++)
+            set(x, yoff + r, (mask >> r) & 1);
+    }
+
+    synchronized void map(int xoff, int yoff, long quad) {
+        for (int r = 0; r < 8; r++)
+            row(xoff, yoff + r, (int) (quad >>> (r << 3)) & 0xff);
+    }
+
+    synchronized void intensity(int i) {
+        intensity = i;
+    }
+
+    // led levels
+
+    private static int levelIndex(int x, int y) {
+        return (((y >> 3) * QUADS_X + (x >> 3)) << 6) | ((y & 7) << 3) | (x & 7);
+    }
+
+    synchronized void level(int x, int y, int l) {
+        if (x < 0 || y < 0 || x >= MAX_WIDTH || y >= MAX_HEIGHT)
+            return;
+        levels[levelIndex(x, y)] = (byte) l;
+        int q = (y >> 3) * QUADS_X + (x >> 3);
+        long bit = 1L << (((y & 7) << 3) | (x & 7));
+        quads[q] = l != 0 ? quads[q] | bit : quads[q] & ~bit;
+        levelMode = true;
+        touched = true;
+    }
+
+    synchronized void levelAll(int l) {
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = (byte) l;
+        for (int q = 0; q < quads.length; q++)
+            quads[q] = l != 0 ? -1L : 0L;
+        levelMode = true;
+        touched = true;
+    }
+
+    synchronized void levelMap(int xoff, int yoff, byte[] values, int off, int len) {
+        for (int i = 0; i < len && i < 64; i++)
+            level(xoff + (i & 7), yoff + (i >> 3), values[off + i] & 0xff);
+    }
+
+    synchronized void levelRow(int xoff, int y, byte[] values, int off, int len) {
+        for (int i = 0; i < len; i++)
+            level(xoff + i, y, values[off + i] & 0xff);
+    }
+
+    synchronized void levelCol(int x, int yoff, byte[] values, int off, int len, int stride) {
+        for (int i = 0; i < len; i++)
+            level(x, yoff + i, values[off + i * stride] & 0xff);
+    }
+
+    // rings
+
+    synchronized void ring(int enc, int led, int level) {
+        if (enc < 0 || enc >= MAX_ENCODERS)
+            return;
+        rings[(enc << 6) | (led & 63)] = (byte) level;
+        ringsTouched |= 1 << enc;
+    }
+
+    synchronized void ringAll(int enc, int level) {
+        for (int led = 0; led < 64; led++)
+            ring(enc, led, level);
+    }
+
+    synchronized void ringMap(int enc, byte[] values) {
+        for (int led = 0; led < values.length && led < 64; led++)
+            ring(enc, led, values[led]);
+    }
+
+    synchronized void ringRange(int enc, int x1, int x2, int level) {
+        // ranges wrap around the ring
+        int n = ((x2 - x1) & 63) + 1;
+        for (int i = 0; i < n; i++)
+            ring(enc, x1 + i, level);
+    }
+
+    // tilt
+
+    synchronized void tilt(int sensor, int active) {
+        if (sensor < 0 || sensor >= MAX_SENSORS)
+            return;
+        tiltTouched |= 1 << sensor;
+        tiltActive = active != 0 ? tiltActive | 1 << sensor : tiltActive & ~(1 << sensor);
+    }
+
+    /**
+     * sends the whole state again; see {@link MonomeDevice#replay()} for the
+     * batching
+     */
+    void replay(MonomeDevice device) {
+        // commands update this shadow: work on a copy
+        long[] q;
+        byte[] l, r;
+        boolean lm, t;
+        int in, rt, tt, ta;
+        synchronized (this) {
+            q = quads.clone();
+            l = levels.clone();
+            r = rings.clone();
+            lm = levelMode;
+            t = touched;
+            in = intensity;
+            rt = ringsTouched;
+            tt = tiltTouched;
+            ta = tiltActive;
+        }
+        int w = device.getSizeX() > 0 ? device.getSizeX() : MAX_WIDTH;
+        int h = device.getSizeY() > 0 ? device.getSizeY() : MAX_HEIGHT;
+        if (in >= 0)
+            device.grid.intensity(in);
+        if (t) {
+            for (int qy = 0; qy < (h + 7) >> 3 && qy < QUADS_Y; qy++) {
+                for (int qx = 0; qx < (w + 7) >> 3 && qx < QUADS_X; qx++) {
+                    int i = qy * QUADS_X + qx;
+                    if (lm)
+                        device.grid.levelMap(qx << 3, qy << 3, l, i << 6);
+                    else
+                        device.grid.map(qx << 3, qy << 3, q[i]);
+                }
+            }
+        }
+        byte[] ring = new byte[64];
+        for (int enc = 0; enc < MAX_ENCODERS; enc++) {
+            if ((rt & (1 << enc)) == 0)
+                continue;
+            System.arraycopy(r, enc << 6, ring, 0, 64);
+            device.ring.map(enc, ring);
+        }
+        for (int s = 0; s < MAX_SENSORS; s++) {
+            if ((tt & (1 << s)) != 0)
+                device.tilt.set(s, (ta >> s) & 1);
+        }
+    }
+}
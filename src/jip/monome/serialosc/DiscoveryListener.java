@@ -0,0 +1,20 @@
+package jip.monome.serialosc;
+
+import javax.jmdns.ServiceInfo;
+
+public interface DiscoveryListener {
+    /**
+     * called when a monome service is resolved
+     * 
+     * @param info
+     */
+    public void resolved(ServiceInfo info);
+
+    /**
+     * called when a monome service goes away
+     * 
+     * @param info
+     *            the info of the service, as resolved
+     */
+    public void removed(ServiceInfo info);
+}
@@ -0,0 +1,231 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Coalesces encoder ticks before they reach the app.
+ *
+ * Registered as an {@link EncListener}, it adds up the ticks of each encoder
+ * for a window of time and then calls an {@link EncValueListener} once with
+ * the sum, at most one window after the first tick. Ticks can be scaled by
+ * an acceleration curve on the spin speed and by a resolution (ticks per
+ * unit), finer while the encoder is held down if asked to. With a window of
+ * 0 every tick is delivered right away, still accelerated.
+ *
+ * Listeners that need every raw tick keep using {@link EncListener}.
+ *
+ * @author jip
+ *
+ */
+public class EncAccumulator implements EncListener, Runnable {
+    public static final long DEFAULT_WINDOW = 10;
+    // most encoders in one arc
+    public static final int MAX_ENCODERS = 8;
+    // ticks per second under which there is no acceleration
+    public static final double DEFAULT_THRESHOLD = 100;
+
+    private final EncValueListener listener;
+
+    private volatile long window;
+    private volatile double exponent = 1, threshold = DEFAULT_THRESHOLD, maxGain = 1;
+    private volatile double coarse = 1, fine = 1;
+    private volatile double min = Double.NEGATIVE_INFINITY, max = Double.POSITIVE_INFINITY;
+
+    // per encoder state, guarded by this
+    private final double[] pending = new double[MAX_ENCODERS], values = new double[MAX_ENCODERS];
+    private final long[] lastTick = new long[MAX_ENCODERS], deadline = new long[MAX_ENCODERS];
+    private final boolean[] held = new boolean[MAX_ENCODERS];
+    private int dirty;
+
+    // values delivered by the thread, handed to the listener out of the lock
+    private final int[] outEnc = new int[MAX_ENCODERS];
+    private final double[] outChange = new double[MAX_ENCODERS], outValue = new double[MAX_ENCODERS];
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public EncAccumulator(EncValueListener listener) {
+        this(listener, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param listener
+     * @param window
+     *            milliseconds ticks are gathered for, 0 to deliver every tick
+     */
+    public EncAccumulator(EncValueListener listener, long window) {
+        this.listener = listener;
+        setWindow(window);
+    }
+
+    public synchronized void setWindow(long millis) {
+        window = millis * 1000000L;
+        if (window > 0 && thread == null) {
+            running = true;
+            thread = new Thread(this, "serialosc-enc");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * ticks spun faster than threshold ticks per second count for
+     * (speed / threshold) ^ (exponent - 1) each, up to maxGain
+     *
+     * @param exponent
+     *            1 for no acceleration
+     * @param threshold
+     * @param maxGain
+     */
+    public void setAcceleration(double exponent, double threshold, double maxGain) {
+        this.exponent = exponent;
+        this.threshold = threshold;
+        this.maxGain = maxGain;
+    }
+
+    /**
+     * @param coarse
+     *            ticks per unit of value
+     * @param fine
+     *            ticks per unit while the encoder is held down
+     */
+    public void setResolution(double coarse, double fine) {
+        this.coarse = coarse;
+        this.fine = fine;
+    }
+
+    /**
+     * clamps the values, so spinning past a bound doesn't need to be undone
+     */
+    public synchronized void setRange(double min, double max) {
+        this.min = min;
+        this.max = max;
+        for (int enc = 0; enc < MAX_ENCODERS; enc++)
+            values[enc] = clamp(values[enc]);
+    }
+
+    public synchronized double getValue(int enc) {
+        return values[enc];
+    }
+
+    public synchronized void setValue(int enc, double value) {
+        values[enc] = clamp(value);
+    }
+
+    private double clamp(double v) {
+        return v < min ? min : v > max ? max : v;
+    }
+
+    /**
+     * stops the delivery thread, pending ticks are delivered
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // EncListener interface
+    @Override
+    public void delta(int enc, int delta) {
+        if (enc < 0 || enc >= MAX_ENCODERS)
+            return;
+        long now = System.nanoTime();
+        Thread wake = null;
+        double change = 0, value = 0;
+        synchronized (this) {
+            pending[enc] += delta * gain(now - lastTick[enc]) / (held[enc] ? fine : coarse);
+            lastTick[enc] = now;
+            if (window == 0 || !running) {
+                change = deliver(enc);
+                value = values[enc];
+            } else if ((dirty & (1 << enc)) == 0) {
+                // first tick of a window
+                dirty |= 1 << enc;
+                deadline[enc] = now + window;
+                wake = thread;
+            }
+        }
+        if (wake != null)
+            LockSupport.unpark(wake);
+        // out of the lock, so a slow listener doesn't hold up the receive
+        // thread
+        if (change != 0)
+            listener.value(enc, change, value);
+    }
+
+    @Override
+    public void press(int enc, int state) {
+        if (enc < 0 || enc >= MAX_ENCODERS)
+            return;
+        synchronized (this) {
+            held[enc] = state != 0;
+        }
+    }
+
+    private double gain(long interval) {
+        if (exponent == 1 || interval <= 0)
+            return 1;
+        double speed = 1e9 / interval;
+        if (speed <= threshold)
+            return 1;
+        return Math.min(maxGain, Math.pow(speed / threshold, exponent - 1));
+    }
+
+    // called holding the lock, returns the change to hand to the listener
+    private double deliver(int enc) {
+        double before = values[enc];
+        values[enc] = clamp(before + pending[enc]);
+        pending[enc] = 0;
+        dirty &= ~(1 << enc);
+        return values[enc] - before;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long wait = Long.MAX_VALUE;
+            int n = 0;
+            boolean stop;
+            synchronized (this) {
+                long now = System.nanoTime();
+                for (int enc = 0; enc < MAX_ENCODERS; enc++) {
+                    if ((dirty & (1 << enc)) == 0)
+                        continue;
+                    long left = deadline[enc] - now;
+                    if (left <= 0 || !running) {
+                        double change = deliver(enc);
+                        if (change != 0) {
+                            outEnc[n] = enc;
+                            outChange[n] = change;
+                            outValue[n] = values[enc];
+                            n++;
+                        }
+                    } else {
+                        wait = Math.min(wait, left);
+                    }
+                }
+                stop = !running;
+            }
+            for (int i = 0; i < n; i++)
+                listener.value(outEnc[i], outChange[i], outValue[i]);
+            if (stop)
+                return;
+            if (wait == Long.MAX_VALUE)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, wait);
+        }
+    }
+}
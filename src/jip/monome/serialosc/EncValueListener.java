@@ -0,0 +1,16 @@
+package jip.monome.serialosc;
+
+public interface EncValueListener {
+    /**
+     * called with the ticks of an encoder coalesced by an
+     * {@link EncAccumulator}
+     * 
+     * @param enc
+     * @param delta
+     *            change since the last call, after acceleration and
+     *            resolution
+     * @param value
+     *            the encoder value
+     */
+    public void value(int enc, double delta, double value);
+}
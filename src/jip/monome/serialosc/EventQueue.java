@@ -0,0 +1,217 @@
+package jip.monome.serialosc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands incoming events from the receive thread to the listeners, so a slow
+ * listener doesn't stall the socket.
+ *
+ * Events are stored as primitive records in a preallocated ring buffer,
+ * and delivered either by a dedicated thread or by tasks run on an executor
+ * (one task at a time, so events keep their order). Events usually come
+ * from the receive thread, but may also come from a replay or from the
+ * previous dispatch thread while switching modes, so producers take a lock
+ * (uncontended almost always); the consumer doesn't. When the ring is full
+ * new events are dropped and counted.
+ *
+ * A queue serves either all the listeners of a device, or a single one
+ * added with {@link MonomeDevice#addListener(Object, Executor)}.
+ *
+ * @author jip
+ *
+ */
+public class EventQueue implements Runnable {
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final MonomeDevice device;
+    // delivers to a single listener, or to all of them when null
+    final Object listener;
+    private final int mask;
+    private final int[] type, a, b, c, d;
+    private final long[] received;
+
+    // next slot to write / to read
+    private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+    private volatile long dropped;
+    // serializes the producers
+    private final Object offerLock = new Object();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final Executor executor;
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private Thread thread;
+    private volatile boolean running, waiting;
+
+    EventQueue(MonomeDevice device, int capacity, Executor executor) {
+        this(device, null, capacity, executor);
+    }
+
+    EventQueue(MonomeDevice device, Object listener, int capacity, Executor executor) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        this.device = device;
+        this.listener = listener;
+        this.mask = capacity - 1;
+        this.type = new int[capacity];
+        this.a = new int[capacity];
+        this.b = new int[capacity];
+        this.c = new int[capacity];
+        this.d = new int[capacity];
+        this.received = new long[capacity];
+        this.executor = executor;
+    }
+
+    /**
+     * an executor running each task on a new virtual thread on Java 21 and
+     * later, or on a cached pool of daemon threads before, for listeners
+     * added with {@link MonomeDevice#addListener(Object, Executor)}
+     *
+     * @return the executor
+     */
+    public static ExecutorService newListenerExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "serialosc-listener");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    void start() {
+        running = true;
+        if (executor == null) {
+            thread = new Thread(this, "serialosc-dispatch " + device.getPrefix());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * stops delivering events, the pending ones are dropped
+     */
+    void stop() {
+        running = false;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * queues an event, from any thread
+     *
+     * @param time
+     *            when the event was received, in {@link System#nanoTime()}
+     *            units
+     */
+    void offer(int t, int x, int y, int z, int w, long time) {
+        synchronized (offerLock) {
+            long h = head.get();
+            if (h - tail.get() > mask) {
+                dropped++;
+                return;
+            }
+            int i = (int) h & mask;
+            type[i] = t;
+            a[i] = x;
+            b[i] = y;
+            c[i] = z;
+            d[i] = w;
+            received[i] = time;
+            head.set(h + 1);
+        }
+        if (executor != null) {
+            if (scheduled.compareAndSet(false, true))
+                executor.execute(this);
+        } else if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void drain() {
+        long t = tail.get();
+        while (t < head.get()) {
+            int i = (int) t & mask;
+            latency.record(System.nanoTime() - received[i]);
+            if (listener == null)
+                device.dispatch(type[i], a[i], b[i], c[i], d[i], received[i]);
+            else
+                deliver(type[i], a[i], b[i], c[i], d[i]);
+            tail.lazySet(++t);
+        }
+    }
+
+    private void deliver(int t, int x, int y, int z, int w) {
+        switch (t) {
+        case MonomeDevice.EVENT_KEY:
+            ((GridListener) listener).press(x, y, z);
+            break;
+        case MonomeDevice.EVENT_TILT:
+            ((TiltListener) listener).tilt(x, y, z, w);
+            break;
+        case MonomeDevice.EVENT_ENC_DELTA:
+            ((EncListener) listener).delta(x, y);
+            break;
+        case MonomeDevice.EVENT_ENC_KEY:
+            ((EncListener) listener).press(x, y);
+            break;
+        }
+    }
+
+    @Override
+    public void run() {
+        if (executor != null) {
+            // one executor task at a time
+            do {
+                drain();
+                scheduled.set(false);
+            } while (running && tail.get() < head.get() && scheduled.compareAndSet(false, true));
+            return;
+        }
+        while (running) {
+            drain();
+            waiting = true;
+            if (tail.get() == head.get() && running)
+                LockSupport.park(this);
+            waiting = false;
+        }
+    }
+
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * @return events waiting to be delivered
+     */
+    public int getDepth() {
+        return (int) (head.get() - tail.get());
+    }
+
+    /**
+     * @return nanoseconds from the receipt of the events, decoding and
+     *         listeners run before queuing included, to their delivery
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return events dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+}
@@ -0,0 +1,163 @@
+package jip.monome.serialosc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the events received and the commands sent by a device to a
+ * memory mapped file, for {@link EventReplayer}.
+ *
+ * The file is a 64 bytes header followed by fixed 64 bytes records:
+ *
+ * <pre>
+ * header: "SOSCREC1", version, record size, count (long), start (nanoTime), start (epoch millis)
+ * record: time (nanoTime, long), kind, event type or argc, 4 int args, address (32 bytes, null padded)
+ * </pre>
+ *
+ * Event records hold the event type and its arguments; command records the
+ * address (truncated to 32 bytes), the number of int arguments and the first
+ * four. Records are written with absolute puts in slots reserved by an
+ * atomic counter, so recording takes no lock and doesn't allocate. When the
+ * file is full, records are dropped and counted.
+ *
+ * @author jip
+ *
+ */
+public class EventRecorder {
+    static final byte[] MAGIC = { 'S', 'O', 'S', 'C', 'R', 'E', 'C', '1' };
+    static final int VERSION = 1;
+    static final int HEADER = 64, RECORD = 64, ADDRESS = 32;
+    // header fields
+    static final int H_VERSION = 8, H_RECORD = 12, H_COUNT = 16, H_START = 24, H_EPOCH = 32;
+    // record fields
+    static final int R_TIME = 0, R_KIND = 8, R_TYPE = 12, R_ARGS = 16, R_ADDRESS = 32;
+
+    // record kinds, 0 marks an unwritten slot
+    public static final int KIND_EVENT = 1, KIND_COMMAND = 2;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final long capacity;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param file
+     *            overwritten
+     * @param capacity
+     *            max number of records
+     * @throws IOException
+     */
+    public EventRecorder(File file, long capacity) throws IOException {
+        long size = HEADER + capacity * RECORD;
+        if (capacity <= 0 || size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("invalid capacity: " + capacity);
+        this.capacity = capacity;
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.file.setLength(size);
+        map = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.put(MAGIC);
+        map.putInt(H_VERSION, VERSION);
+        map.putInt(H_RECORD, RECORD);
+        map.putLong(H_START, System.nanoTime());
+        map.putLong(H_EPOCH, System.currentTimeMillis());
+    }
+
+    // slot of the next record, -1 if full
+    private int reserve() {
+        if (closed)
+            return -1;
+        long i = next.getAndIncrement();
+        if (i >= capacity) {
+            dropped.incrementAndGet();
+            return -1;
+        }
+        return (int) (HEADER + i * RECORD);
+    }
+
+    /**
+     * records an incoming event
+     */
+    void event(int type, int a, int b, int c, int d, long time) {
+        int p = reserve();
+        if (p < 0)
+            return;
+        map.putLong(p + R_TIME, time);
+        map.putInt(p + R_TYPE, type);
+        map.putInt(p + R_ARGS, a);
+        map.putInt(p + R_ARGS + 4, b);
+        map.putInt(p + R_ARGS + 8, c);
+        map.putInt(p + R_ARGS + 12, d);
+        // written last: the record is complete
+        map.putInt(p + R_KIND, KIND_EVENT);
+    }
+
+    /**
+     * records an outgoing command
+     *
+     * @param address
+     *            pre-encoded
+     * @param argc
+     *            number of int arguments, -1 for a string
+     * @param a
+     *            first four int arguments
+     */
+    void command(byte[] address, int argc, int a, int b, int c, int d) {
+        int p = reserve();
+        if (p < 0)
+            return;
+        map.putLong(p + R_TIME, System.nanoTime());
+        map.putInt(p + R_TYPE, argc);
+        map.putInt(p + R_ARGS, a);
+        map.putInt(p + R_ARGS + 4, b);
+        map.putInt(p + R_ARGS + 8, c);
+        map.putInt(p + R_ARGS + 12, d);
+        for (int i = 0; i < ADDRESS; i++)
+            map.put(p + R_ADDRESS + i, i < address.length ? address[i] : 0);
+        map.putInt(p + R_KIND, KIND_COMMAND);
+    }
+
+    /**
+     * @return records written so far
+     */
+    public long getCount() {
+        return Math.min(next.get(), capacity);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return records lost because the file was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * writes the record count and forces the file to disk
+     */
+    public synchronized void flush() {
+        map.putLong(H_COUNT, getCount());
+        map.force();
+    }
+
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        flush();
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+}
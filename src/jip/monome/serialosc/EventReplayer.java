@@ -0,0 +1,143 @@
+package jip.monome.serialosc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reads a file written by {@link EventRecorder}, and feeds its events back
+ * to the key state and the listeners of a device.
+ *
+ * @author jip
+ *
+ */
+public class EventReplayer {
+    private final MappedByteBuffer map;
+    private final long count;
+
+    public EventReplayer(File file) throws IOException {
+        RandomAccessFile f = new RandomAccessFile(file, "r");
+        try {
+            map = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+        } finally {
+            f.close();
+        }
+        for (int i = 0; i < EventRecorder.MAGIC.length; i++) {
+            if (map.get(i) != EventRecorder.MAGIC[i])
+                throw new IOException("not an event recording: " + file);
+        }
+        if (map.getInt(EventRecorder.H_RECORD) != EventRecorder.RECORD)
+            throw new IOException("unsupported record size: " + map.getInt(EventRecorder.H_RECORD));
+        long n = map.getLong(EventRecorder.H_COUNT);
+        if (n == 0) {
+            // not closed: count the complete records
+            long max = (map.capacity() - EventRecorder.HEADER) / EventRecorder.RECORD;
+            while (n < max && getKind(n) != 0)
+                n++;
+        }
+        count = n;
+    }
+
+    private int at(long i) {
+        return (int) (EventRecorder.HEADER + i * EventRecorder.RECORD);
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when recording started
+     */
+    public long getStartTime() {
+        return map.getLong(EventRecorder.H_EPOCH);
+    }
+
+    /**
+     * @return nanoseconds since recording started
+     */
+    public long getTime(long i) {
+        return map.getLong(at(i) + EventRecorder.R_TIME) - map.getLong(EventRecorder.H_START);
+    }
+
+    /**
+     * @return {@link EventRecorder#KIND_EVENT} or
+     *         {@link EventRecorder#KIND_COMMAND}
+     */
+    public int getKind(long i) {
+        return map.getInt(at(i) + EventRecorder.R_KIND);
+    }
+
+    /**
+     * @return the event type, or the number of int arguments of a command
+     */
+    public int getType(long i) {
+        return map.getInt(at(i) + EventRecorder.R_TYPE);
+    }
+
+    /**
+     * @param n
+     *            0 to 3
+     */
+    public int getArg(long i, int n) {
+        return map.getInt(at(i) + EventRecorder.R_ARGS + 4 * n);
+    }
+
+    /**
+     * @return the address of a command, null for an event
+     */
+    public String getAddress(long i) {
+        if (getKind(i) != EventRecorder.KIND_COMMAND)
+            return null;
+        StringBuilder s = new StringBuilder();
+        for (int k = 0; k < EventRecorder.ADDRESS; k++) {
+            byte b = map.get(at(i) + EventRecorder.R_ADDRESS + k);
+            if (b == 0)
+                break;
+            s.append((char) b);
+        }
+        return s.toString();
+    }
+
+    /**
+     * feeds every recorded event to a device. The listeners are called from
+     * the calling thread, bypassing the event queue and the recorder of the
+     * device: replay to a device that is not receiving events (e.g. one
+     * connected to an idle {@link SerialoscEmulator}), so listeners don't
+     * get events from two threads at once.
+     *
+     * @param device
+     * @param realTime
+     *            keeps the recorded timing, otherwise as fast as possible
+     * @return the number of events replayed
+     */
+    public long replay(MonomeDevice device, boolean realTime) {
+        long events = 0, first = -1, start = System.nanoTime();
+        for (long i = 0; i < count; i++) {
+            if (getKind(i) != EventRecorder.KIND_EVENT)
+                continue;
+            long t = getTime(i);
+            if (first < 0)
+                first = t;
+            long now = System.nanoTime();
+            if (realTime) {
+                long due = start + t - first;
+                while ((now = System.nanoTime()) < due)
+                    LockSupport.parkNanos(due - now);
+            }
+            int p = at(i);
+            device.replayed(getType(i), map.getInt(p + EventRecorder.R_ARGS), map.getInt(p + EventRecorder.R_ARGS + 4),
+                    map.getInt(p + EventRecorder.R_ARGS + 8), map.getInt(p + EventRecorder.R_ARGS + 12), now);
+            events++;
+        }
+        return events;
+    }
+
+    @Override
+    public String toString() {
+        return count + " records";
+    }
+}
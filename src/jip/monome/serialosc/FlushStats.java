@@ -0,0 +1,55 @@
+package jip.monome.serialosc;
+
+/**
+ * Messages and datagrams sent per flush, for batches and scheduler ticks.
+ *
+ * @author jip
+ *
+ */
+public class FlushStats {
+    private long flushes, messages, datagrams;
+    private int lastMessages, lastDatagrams;
+
+    synchronized void record(int messages, int datagrams) {
+        if (messages == 0)
+            return;
+        this.flushes++;
+        this.messages += messages;
+        this.datagrams += datagrams;
+        this.lastMessages = messages;
+        this.lastDatagrams = datagrams;
+    }
+
+    public synchronized long getFlushes() {
+        return flushes;
+    }
+
+    public synchronized long getMessages() {
+        return messages;
+    }
+
+    public synchronized long getDatagrams() {
+        return datagrams;
+    }
+
+    public synchronized int getLastMessages() {
+        return lastMessages;
+    }
+
+    public synchronized int getLastDatagrams() {
+        return lastDatagrams;
+    }
+
+    public synchronized double getMessagesPerFlush() {
+        return flushes == 0 ? 0 : (double) messages / flushes;
+    }
+
+    public synchronized double getDatagramsPerFlush() {
+        return flushes == 0 ? 0 : (double) datagrams / flushes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "FlushStats[flushes=" + flushes + ", messages=" + messages + ", datagrams=" + datagrams + "]";
+    }
+}
@@ -0,0 +1,167 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * One drawing surface spread over several grids.
+ *
+ * Each tile is a device placed at an offset of the canvas, rotated by
+ * serialosc ({@link MonomeDevice#setRotation(int)}), so the tile covers the
+ * size the device reports. On {@link #commit()} every tile takes its part of
+ * the canvas into its own frame or level buffer, which works out the diff;
+ * the diffs of all tiles are encoded first and only then sent, one batch
+ * per tile back to back, so the frame shows on every tile at about the same
+ * time. Keys pressed on any tile reach the canvas listeners in canvas
+ * coordinates.
+ *
+ * @author jip
+ *
+ */
+public class GridCanvas {
+    private final int width, height;
+    private final boolean levels;
+    private final byte[] back;
+
+    // copied on write
+    private volatile Tile[] tiles = new Tile[0];
+    private volatile GridListener[] listeners = new GridListener[0];
+
+    /**
+     * @param width
+     * @param height
+     * @param levels
+     *            true to draw levels (0-15) through the tiles level buffers,
+     *            false for leds on or off through their frame buffers
+     */
+    public GridCanvas(int width, int height, boolean levels) {
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        back = new byte[width * height];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * adds a device to the canvas
+     *
+     * @param device
+     * @param x
+     *            canvas column of the top left led of the device
+     * @param y
+     *            canvas row of the top left led of the device
+     * @param rotation
+     *            0, 90, 180 or 270, set on the device
+     * @throws IOException
+     */
+    public synchronized void addTile(MonomeDevice device, int x, int y, int rotation) throws IOException {
+        Tile t = new Tile(device, x, y);
+        device.setRotation(rotation);
+        // the size changes with the rotation
+        device.requestInfo();
+        device.addListener(t);
+        Tile[] ts = Arrays.copyOf(tiles, tiles.length + 1);
+        ts[ts.length - 1] = t;
+        tiles = ts;
+    }
+
+    public synchronized void addListener(GridListener l) {
+        GridListener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+        ls[ls.length - 1] = l;
+        listeners = ls;
+    }
+
+    // drawing
+
+    public synchronized void set(int x, int y, int level) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int l = level < 0 ? 0 : level > GridLevelBuffer.MAX_LEVEL ? GridLevelBuffer.MAX_LEVEL : level;
+        back[y * width + x] = (byte) l;
+    }
+
+    public synchronized int get(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        return back[y * width + x];
+    }
+
+    public synchronized void all(int level) {
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                set(x, y, level);
+    }
+
+    /**
+     * forces every tile to be sent on next commit
+     */
+    public void invalidate() {
+        for (Tile t : tiles) {
+            if (levels)
+                t.device.getLevelBuffer().invalidate();
+            else
+                t.device.getFrameBuffer().invalidate();
+        }
+    }
+
+    /**
+     * sends the changes of every tile
+     */
+    public synchronized void commit() {
+        Tile[] ts = tiles;
+        for (Tile t : ts) {
+            t.device.beginBatch();
+            if (levels)
+                t.copyLevels();
+            else
+                t.copyFrame();
+        }
+        for (Tile t : ts)
+            t.device.flush();
+    }
+
+    /**
+     * a device and its place on the canvas
+     */
+    class Tile implements GridListener {
+        final MonomeDevice device;
+        final int x, y;
+
+        Tile(MonomeDevice device, int x, int y) {
+            this.device = device;
+            this.x = x;
+            this.y = y;
+        }
+
+        // called holding the canvas lock
+        void copyLevels() {
+            GridLevelBuffer b = device.getLevelBuffer();
+            for (int r = 0; r < b.getHeight(); r++)
+                for (int c = 0; c < b.getWidth(); c++)
+                    b.set(c, r, get(x + c, y + r));
+            b.commit();
+        }
+
+        void copyFrame() {
+            GridFrameBuffer b = device.getFrameBuffer();
+            for (int r = 0; r < b.getHeight(); r++)
+                for (int c = 0; c < b.getWidth(); c++)
+                    b.set(c, r, get(x + c, y + r) != 0 ? 1 : 0);
+            b.commit();
+        }
+
+        // GridListener interface
+        @Override
+        public void press(int kx, int ky, int state) {
+            for (GridListener l : listeners)
+                l.press(x + kx, y + ky, state);
+        }
+    }
+}
@@ -1,9 +1,5 @@
 package jip.monome.serialosc;
 
-import java.io.IOException;
-
-import com.illposed.osc.OSCMessage;
-
 public class GridCommands {
     public static final String MSG_SET = "/grid/led/set";
     public static final String MSG_ALL = "/grid/led/all";
@@ -11,71 +7,175 @@ public class GridCommands {
     public static final String MSG_ROW = "/grid/led/row";
     public static final String MSG_COL = "/grid/led/col";
     public static final String MSG_INT = "/grid/led/intensity";
+    public static final String MSG_LEVEL_SET = "/grid/led/level/set";
+    public static final String MSG_LEVEL_ALL = "/grid/led/level/all";
+    public static final String MSG_LEVEL_MAP = "/grid/led/level/map";
+    public static final String MSG_LEVEL_ROW = "/grid/led/level/row";
+    public static final String MSG_LEVEL_COL = "/grid/led/level/col";
 
     MonomeDevice grid;
 
+    // pre-encoded addresses
+    final byte[] addrSet, addrAll, addrMap, addrRow, addrCol, addrInt;
+    final byte[] addrLevelSet, addrLevelAll, addrLevelMap, addrLevelRow, addrLevelCol;
+
     public GridCommands(MonomeDevice grid) {
         this.grid = grid;
+        addrSet = OscEncoder.address(grid.prefix + MSG_SET);
+        addrAll = OscEncoder.address(grid.prefix + MSG_ALL);
+        addrMap = OscEncoder.address(grid.prefix + MSG_MAP);
+        addrRow = OscEncoder.address(grid.prefix + MSG_ROW);
+        addrCol = OscEncoder.address(grid.prefix + MSG_COL);
+        addrInt = OscEncoder.address(grid.prefix + MSG_INT);
+        addrLevelSet = OscEncoder.address(grid.prefix + MSG_LEVEL_SET);
+        addrLevelAll = OscEncoder.address(grid.prefix + MSG_LEVEL_ALL);
+        addrLevelMap = OscEncoder.address(grid.prefix + MSG_LEVEL_MAP);
+        addrLevelRow = OscEncoder.address(grid.prefix + MSG_LEVEL_ROW);
+        addrLevelCol = OscEncoder.address(grid.prefix + MSG_LEVEL_COL);
+
+        // targets, for the output scheduler
+        OscEncoder out = grid.out;
+        out.coalesce(addrSet, 2);
+        out.coalesce(addrAll, 0);
+        out.coalesce(addrMap, 2);
+        out.coalesce(addrRow, 2);
+        out.coalesce(addrCol, 2);
+        out.coalesce(addrInt, 0);
+        out.coalesce(addrLevelSet, 2);
+        out.coalesce(addrLevelAll, 0);
+        out.coalesce(addrLevelMap, 2);
+        out.coalesce(addrLevelRow, 2);
+        out.coalesce(addrLevelCol, 2);
+        for (byte[] a : new byte[][] { addrSet, addrAll, addrMap, addrRow, addrCol, addrInt, addrLevelSet,
+                addrLevelAll, addrLevelMap, addrLevelRow, addrLevelCol })
+            out.family(a, DeviceMetrics.GRID);
     }
 
     public void set(int x, int y, int s) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_SET);
-        msg.addArgument(new Integer(x));
-        msg.addArgument(new Integer(y));
-        msg.addArgument(new Integer(s));
-        send(msg);
+        grid.keys.echo(x, y, 1, 1);
+        grid.shadow.set(x, y, s);
+        grid.out.send(addrSet, x, y, s);
     }
 
     public void all(int s) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_ALL);
-        msg.addArgument(new Integer(s));
-        send(msg);
+        grid.keys.echoAll();
+        grid.shadow.all(s);
+        grid.out.send(addrAll, s);
     }
 
     public void map(int xoff, int yoff, int[] masks) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_MAP);
-        msg.addArgument(new Integer(xoff));
-        msg.addArgument(new Integer(yoff));
-        for (int mask : masks)
-            msg.addArgument(new Integer(mask));
-        send(msg);
+        OscEncoder.checkArgs(addrMap, 2 + masks.length);
+        grid.keys.echo(xoff, yoff, 8, masks.length);
+        for (int r = 0; r < masks.length; r++)
+            grid.shadow.row(xoff, yoff + r, masks[r]);
+        grid.out.send(addrMap, xoff, yoff, masks);
+    }
+
+    /**
+     * sends a 8x8 quad packed in a long, one byte per row
+     *
+     * @param xoff
+     * @param yoff
+     * @param quad
+     */
+    public void map(int xoff, int yoff, long quad) {
+        grid.keys.echo(xoff, yoff, 8, 8);
+        grid.shadow.map(xoff, yoff, quad);
+        grid.out.send(addrMap, xoff, yoff, quad);
     }
 
     public void row(int xoff, int y, byte[] masks) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_ROW);
-        msg.addArgument(new Integer(xoff));
-        msg.addArgument(new Integer(y));
-        for (int mask : masks)
-            msg.addArgument(new Integer(mask));
-        send(msg);
+        OscEncoder.checkArgs(addrRow, 2 + masks.length);
+        grid.keys.echo(xoff, y, masks.length << 3, 1);
+        for (int i = 0; i < masks.length; i++)
+            grid.shadow.row(xoff + (i << 3), y, masks[i]);
+        grid.out.send(addrRow, xoff, y, masks);
+    }
+
+    public void row(int xoff, int y, int mask) {
+        grid.keys.echo(xoff, y, 8, 1);
+        grid.shadow.row(xoff, y, mask);
+        grid.out.send(addrRow, xoff, y, mask & 0xff);
     }
 
     public void col(int x, int yoff, byte[] masks) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_COL);
-        msg.addArgument(new Integer(x));
-        msg.addArgument(new Integer(yoff));
-        for (int mask : masks)
-            msg.addArgument(new Integer(mask));
-        send(msg);
+        OscEncoder.checkArgs(addrCol, 2 + masks.length);
+        grid.keys.echo(x, yoff, 1, masks.length << 3);
+        for (int i = 0; i < masks.length; i++)
+            grid.shadow.col(x, yoff + (i << 3), masks[i]);
+        grid.out.send(addrCol, x, yoff, masks);
+    }
+
+    public void col(int x, int yoff, int mask) {
+        grid.keys.echo(x, yoff, 1, 8);
+        grid.shadow.col(x, yoff, mask);
+        grid.out.send(addrCol, x, yoff, mask & 0xff);
     }
 
     public void intensity(int i) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(grid.prefix + MSG_INT);
-        msg.addArgument(new Integer(i));
-        send(msg);
-    }
-
-    private void send(OSCMessage msg) {
-        try {
-            grid.OSCout.send(msg);
-        } catch (IOException e) {
-            // Do nothing
-        }
+        grid.shadow.intensity(i);
+        grid.out.send(addrInt, i);
+    }
+
+    // varibright
+
+    public void levelSet(int x, int y, int l) {
+        grid.keys.echo(x, y, 1, 1);
+        grid.shadow.level(x, y, l);
+        grid.out.send(addrLevelSet, x, y, l);
+    }
+
+    public void levelAll(int l) {
+        grid.keys.echoAll();
+        grid.shadow.levelAll(l);
+        grid.out.send(addrLevelAll, l);
+    }
+
+    /**
+     * sets the levels of a 8x8 quad
+     *
+     * @param xoff
+     * @param yoff
+     * @param levels 64 levels, row by row
+     */
+    public void levelMap(int xoff, int yoff, byte[] levels) {
+        OscEncoder.checkArgs(addrLevelMap, 2 + levels.length);
+        grid.keys.echo(xoff, yoff, 8, 8);
+        grid.shadow.levelMap(xoff, yoff, levels, 0, levels.length);
+        grid.out.send(addrLevelMap, xoff, yoff, levels);
+    }
+
+    public void levelRow(int xoff, int y, byte[] levels) {
+        OscEncoder.checkArgs(addrLevelRow, 2 + levels.length);
+        grid.keys.echo(xoff, y, levels.length, 1);
+        grid.shadow.levelRow(xoff, y, levels, 0, levels.length);
+        grid.out.send(addrLevelRow, xoff, y, levels);
+    }
+
+    public void levelCol(int x, int yoff, byte[] levels) {
+        OscEncoder.checkArgs(addrLevelCol, 2 + levels.length);
+        grid.keys.echo(x, yoff, 1, levels.length);
+        grid.shadow.levelCol(x, yoff, levels, 0, levels.length, 1);
+        grid.out.send(addrLevelCol, x, yoff, levels);
+    }
+
+    // quad slices, as stored by GridLevelBuffer
+
+    void levelMap(int xoff, int yoff, byte[] levels, int off) {
+        grid.keys.echo(xoff, yoff, 8, 8);
+        grid.shadow.levelMap(xoff, yoff, levels, off, 64);
+        grid.out.send(addrLevelMap, xoff, yoff, levels, off, 64, 1);
+    }
+
+    void levelRow(int xoff, int y, byte[] levels, int off) {
+        grid.keys.echo(xoff, y, 8, 1);
+        grid.shadow.levelRow(xoff, y, levels, off, 8);
+        grid.out.send(addrLevelRow, xoff, y, levels, off, 8, 1);
+    }
+
+    void levelCol(int x, int yoff, byte[] levels, int off) {
+        grid.keys.echo(x, yoff, 1, 8);
+        grid.shadow.levelCol(x, yoff, levels, off, 8, 8);
+        grid.out.send(addrLevelCol, x, yoff, levels, off, 8, 8);
     }
 }
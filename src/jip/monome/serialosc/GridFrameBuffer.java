@@ -0,0 +1,193 @@
+package jip.monome.serialosc;
+
+/**
+ * Double buffered on/off led state for a grid.
+ *
+ * Apps draw into the back buffer and call {@link #commit()}; only the 8x8
+ * quads that differ from the last committed frame are sent, each one with
+ * the cheapest of /grid/led/row, /grid/led/col or /grid/led/map.
+ *
+ * Every quad is packed in a long, one byte per row with the leftmost led
+ * in the lowest bit, which is the /grid/led/map mask layout; layers in the
+ * same layout ({@link GridLayer}) are drawn into the back buffer directly.
+ *
+ * @author jip
+ *
+ */
+public class GridFrameBuffer {
+    // used until the device answers /sys/size
+    static final int DEFAULT_SIZE = 16;
+
+    private final MonomeDevice device;
+    private int width, height, quadsX, quadsY;
+    private long[] back, front;
+    private boolean valid;
+
+    public GridFrameBuffer(MonomeDevice device) {
+        this.device = device;
+        int w = device.getSizeX(), h = device.getSizeY();
+        if (w == 0 || h == 0)
+            w = h = DEFAULT_SIZE;
+        resize(w, h);
+    }
+
+    /**
+     * resizes the buffers, dropping their contents
+     *
+     * @param w
+     * @param h
+     */
+    synchronized void resize(int w, int h) {
+        if (w == width && h == height)
+            return;
+        width = w;
+        height = h;
+        quadsX = (w + 7) >> 3;
+        quadsY = (h + 7) >> 3;
+        back = new long[quadsX * quadsY];
+        front = new long[quadsX * quadsY];
+        valid = false;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // drawing, on the back buffer
+
+    public synchronized void set(int x, int y, int s) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int q = (y >> 3) * quadsX + (x >> 3);
+        long bit = 1L << (((y & 7) << 3) | (x & 7));
+        if (s != 0)
+            back[q] |= bit;
+        else
+            back[q] &= ~bit;
+    }
+
+    public synchronized int get(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        int q = (y >> 3) * quadsX + (x >> 3);
+        return (int) (back[q] >>> (((y & 7) << 3) | (x & 7))) & 1;
+    }
+
+    public synchronized void all(int s) {
+        long v = s != 0 ? -1L : 0L;
+        for (int q = 0; q < back.length; q++)
+            back[q] = v;
+    }
+
+    public synchronized void map(int xoff, int yoff, int[] masks) {
+        for (int r = 0; r < masks.length; r++)
+            for (int c = 0; c < 8; c++)
+                set(xoff + c, yoff + r, (masks[r] >> c) & 1);
+    }
+
+    public synchronized void row(int xoff, int y, byte[] masks) {
+        for (int i = 0; i < masks.length; i++)
+            for (int c = 0; c < 8; c++)
+                set(xoff + (i << 3) + c, y, (masks[i] >> c) & 1);
+    }
+
+    public synchronized void col(int x, int yoff, byte[] masks) {
+        for (int i = 0; i < masks.length; i++)
+            for (int r = 0; r < 8; r++)
+                set(x, yoff + (i << 3) + r, (masks[i] >> r) & 1);
+    }
+
+    /**
+     * draws a layer over the back buffer, a quad at a time
+     *
+     * @param layer
+     * @param op
+     *            {@link GridLayer#COPY}, {@link GridLayer#OR}...
+     */
+    public synchronized void draw(GridLayer layer, int op) {
+        GridLayer.draw(back, quadsX, quadsY, layer, op);
+    }
+
+    /**
+     * forces the whole frame to be sent on next commit
+     */
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * sends the differences between the back buffer and the last committed
+     * frame
+     */
+    public synchronized void commit() {
+        GridCommands grid = device.grid;
+        if (!valid) {
+            // unknown device state: a uniform frame is a single message
+            if (isUniform()) {
+                grid.all(back[0] != 0 ? 1 : 0);
+                System.arraycopy(back, 0, front, 0, back.length);
+                valid = true;
+                return;
+            }
+        }
+        for (int qy = 0; qy < quadsY; qy++) {
+            for (int qx = 0; qx < quadsX; qx++) {
+                int q = qy * quadsX + qx;
+                long quad = back[q];
+                long diff = valid ? quad ^ front[q] : -1L;
+                if (diff == 0)
+                    continue;
+                int xoff = qx << 3, yoff = qy << 3;
+                long rows = rowsOf(diff), cols = colsOf(diff);
+                if (Long.bitCount(rows) == 1) {
+                    int r = Long.numberOfTrailingZeros(rows) >> 3;
+                    grid.row(xoff, yoff + r, (int) (quad >>> (r << 3)) & 0xff);
+                } else if (Long.bitCount(cols) == 1) {
+                    int c = Long.numberOfTrailingZeros(cols);
+                    grid.col(xoff + c, yoff, column(quad, c));
+                } else {
+                    grid.map(xoff, yoff, quad);
+                }
+                front[q] = quad;
+            }
+        }
+        valid = true;
+    }
+
+    private boolean isUniform() {
+        long first = back[0];
+        if (first != 0 && first != -1L)
+            return false;
+        for (int q = 1; q < back.length; q++)
+            if (back[q] != first)
+                return false;
+        return true;
+    }
+
+    // one bit set in the lowest bit of every non empty row byte
+    private static long rowsOf(long quad) {
+        long rows = quad | (quad >>> 4);
+        rows |= rows >>> 2;
+        rows |= rows >>> 1;
+        return rows & 0x0101010101010101L;
+    }
+
+    // one bit set in the lowest byte for every non empty column
+    private static long colsOf(long quad) {
+        long cols = quad | (quad >>> 32);
+        cols |= cols >>> 16;
+        cols |= cols >>> 8;
+        return cols & 0xff;
+    }
+
+    private static int column(long quad, int c) {
+        int mask = 0;
+        for (int r = 0; r < 8; r++)
+            mask |= (int) ((quad >>> ((r << 3) + c)) & 1) << r;
+        return mask;
+    }
+}
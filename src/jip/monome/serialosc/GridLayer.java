@@ -0,0 +1,252 @@
+package jip.monome.serialosc;
+
+/**
+ * An on/off grid image packed in bitboards, one long per 8x8 quad with one
+ * byte per row and the leftmost led in the lowest bit: the /grid/led/map
+ * mask layout, as in {@link GridFrameBuffer}.
+ *
+ * Layers (pattern, playhead, cursor...) are combined a quad at a time with
+ * {@link #draw(GridLayer, int)}, or drawn into a frame buffer with
+ * {@link GridFrameBuffer#draw(GridLayer, int)}, and scrolled with
+ * {@link #shift(int, int)} and {@link #rotate(int, int)}; nothing allocates
+ * once the layer is built. Layers are not thread safe.
+ *
+ * @author jip
+ *
+ */
+public class GridLayer {
+    // ways of drawing a layer over another
+    public static final int COPY = 0;
+    public static final int OR = 1;
+    public static final int AND = 2;
+    public static final int XOR = 3;
+    // turns off the leds set in the layer drawn
+    public static final int MASK = 4;
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+    // per k, the bits of columns k..7 and 0..k-1 of every row
+    private static final long[] HIGH_COLS = new long[8], LOW_COLS = new long[8];
+    static {
+        for (int k = 0; k < 8; k++) {
+            HIGH_COLS[k] = LOW_BITS * ((0xff << k) & 0xff);
+            LOW_COLS[k] = LOW_BITS * ((1 << k) - 1);
+        }
+    }
+
+    private final int width, height;
+    final int quadsX, quadsY;
+    final long[] quads;
+    // leds inside the layer, for the quads on its right and bottom edges
+    private final long[] clip;
+    private final long[] tmp, tmp2;
+
+    public GridLayer(int width, int height) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("bad layer size: " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        quadsX = (width + 7) >> 3;
+        quadsY = (height + 7) >> 3;
+        quads = new long[quadsX * quadsY];
+        clip = new long[quads.length];
+        tmp = new long[quads.length];
+        tmp2 = new long[quads.length];
+        for (int qy = 0; qy < quadsY; qy++) {
+            int rows = Math.min(8, height - (qy << 3));
+            for (int qx = 0; qx < quadsX; qx++) {
+                long row = (1L << Math.min(8, width - (qx << 3))) - 1, c = 0;
+                for (int r = 0; r < rows; r++)
+                    c |= row << (r << 3);
+                clip[qy * quadsX + qx] = c;
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void set(int x, int y, int s) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int q = (y >> 3) * quadsX + (x >> 3);
+        long bit = 1L << (((y & 7) << 3) | (x & 7));
+        if (s != 0)
+            quads[q] |= bit;
+        else
+            quads[q] &= ~bit;
+    }
+
+    public int get(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        int q = (y >> 3) * quadsX + (x >> 3);
+        return (int) (quads[q] >>> (((y & 7) << 3) | (x & 7))) & 1;
+    }
+
+    public void clear() {
+        for (int q = 0; q < quads.length; q++)
+            quads[q] = 0;
+    }
+
+    public void fill() {
+        System.arraycopy(clip, 0, quads, 0, quads.length);
+    }
+
+    public void invert() {
+        for (int q = 0; q < quads.length; q++)
+            quads[q] = ~quads[q] & clip[q];
+    }
+
+    /**
+     * sets or clears a rectangle, e.g. a playhead column or a cursor
+     */
+    public void rect(int x, int y, int w, int h, int s) {
+        int x1 = Math.max(0, x), y1 = Math.max(0, y);
+        int x2 = Math.min(width, x + w), y2 = Math.min(height, y + h);
+        for (int qy = y1 >> 3; qy < quadsY && qy << 3 < y2; qy++) {
+            for (int qx = x1 >> 3; qx < quadsX && qx << 3 < x2; qx++) {
+                int c1 = Math.max(x1 - (qx << 3), 0), c2 = Math.min(x2 - (qx << 3), 8);
+                int r1 = Math.max(y1 - (qy << 3), 0), r2 = Math.min(y2 - (qy << 3), 8);
+                long row = ((1L << c2) - 1) & ~((1L << c1) - 1), bits = 0;
+                for (int r = r1; r < r2; r++)
+                    bits |= row << (r << 3);
+                int q = qy * quadsX + qx;
+                quads[q] = s != 0 ? quads[q] | bits : quads[q] & ~bits;
+            }
+        }
+    }
+
+    /**
+     * @param rows
+     *            one mask per row from y = 0, bit x for column x
+     */
+    public void setRows(int[] rows) {
+        clear();
+        for (int y = 0; y < rows.length && y < height; y++)
+            for (int qx = 0; qx < quadsX; qx++)
+                quads[(y >> 3) * quadsX + qx] |= (long) ((rows[y] >>> (qx << 3)) & 0xff) << ((y & 7) << 3);
+        for (int q = 0; q < quads.length; q++)
+            quads[q] &= clip[q];
+    }
+
+    /**
+     * combines another layer into this one, quad by quad; the parts of the
+     * layers that don't overlap are left alone
+     *
+     * @param layer
+     * @param op
+     *            {@link #COPY}, {@link #OR}, {@link #AND}, {@link #XOR} or
+     *            {@link #MASK}
+     */
+    public void draw(GridLayer layer, int op) {
+        draw(quads, quadsX, quadsY, layer, op);
+        if (layer.width > width || layer.height > height) {
+            for (int q = 0; q < quads.length; q++)
+                quads[q] &= clip[q];
+        }
+    }
+
+    static void draw(long[] dst, int dstQuadsX, int dstQuadsY, GridLayer layer, int op) {
+        long[] src = layer.quads;
+        int qw = Math.min(dstQuadsX, layer.quadsX), qh = Math.min(dstQuadsY, layer.quadsY);
+        for (int qy = 0; qy < qh; qy++) {
+            int d = qy * dstQuadsX, s = qy * layer.quadsX;
+            for (int qx = 0; qx < qw; qx++, d++, s++) {
+                long below = dst[d], q;
+                switch (op) {
+                case COPY:
+                    q = src[s];
+                    break;
+                case OR:
+                    q = below | src[s];
+                    break;
+                case AND:
+                    q = below & src[s];
+                    break;
+                case XOR:
+                    q = below ^ src[s];
+                    break;
+                case MASK:
+                    q = below & ~src[s];
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown op: " + op);
+                }
+                // leds outside the layer drawn are left alone
+                long c = layer.clip[s];
+                dst[d] = (below & ~c) | (q & c);
+            }
+        }
+    }
+
+    /**
+     * moves the leds dx columns right and dy rows down; leds moved out are
+     * lost and the leds uncovered are off
+     */
+    public void shift(int dx, int dy) {
+        if (dx != 0) {
+            shiftX(quads, tmp, dx);
+            System.arraycopy(tmp, 0, quads, 0, quads.length);
+        }
+        if (dy != 0) {
+            shiftY(quads, tmp, dy);
+            System.arraycopy(tmp, 0, quads, 0, quads.length);
+        }
+    }
+
+    /**
+     * moves the leds dx columns right and dy rows down, wrapping around the
+     * edges
+     */
+    public void rotate(int dx, int dy) {
+        dx = Math.floorMod(dx, width);
+        dy = Math.floorMod(dy, height);
+        if (dx != 0) {
+            // the leds going out on the right come back from the left
+            shiftX(quads, tmp, dx);
+            shiftX(quads, tmp2, dx - width);
+            for (int q = 0; q < quads.length; q++)
+                quads[q] = tmp[q] | tmp2[q];
+        }
+        if (dy != 0) {
+            shiftY(quads, tmp, dy);
+            shiftY(quads, tmp2, dy - height);
+            for (int q = 0; q < quads.length; q++)
+                quads[q] = tmp[q] | tmp2[q];
+        }
+    }
+
+    private void shiftX(long[] src, long[] dst, int dx) {
+        int m = Math.floorDiv(dx, 8), k = dx - (m << 3);
+        for (int qy = 0; qy < quadsY; qy++) {
+            int row = qy * quadsX;
+            for (int qx = 0; qx < quadsX; qx++) {
+                // the quad moving here, and its left neighbour spilling k columns
+                int s = qx - m;
+                long a = s >= 0 && s < quadsX ? src[row + s] : 0;
+                long b = s >= 1 && s <= quadsX ? src[row + s - 1] : 0;
+                long q = k == 0 ? a : ((a << k) & HIGH_COLS[k]) | ((b >>> (8 - k)) & LOW_COLS[k]);
+                dst[row + qx] = q & clip[row + qx];
+            }
+        }
+    }
+
+    private void shiftY(long[] src, long[] dst, int dy) {
+        int m = Math.floorDiv(dy, 8), k = dy - (m << 3);
+        for (int qy = 0; qy < quadsY; qy++) {
+            // the quad moving here, and the one above spilling k rows
+            int s = qy - m;
+            for (int qx = 0; qx < quadsX; qx++) {
+                long a = s >= 0 && s < quadsY ? src[s * quadsX + qx] : 0;
+                long b = s >= 1 && s <= quadsY ? src[(s - 1) * quadsX + qx] : 0;
+                long q = k == 0 ? a : (a << (k << 3)) | (b >>> (64 - (k << 3)));
+                dst[qy * quadsX + qx] = q & clip[qy * quadsX + qx];
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package jip.monome.serialosc;
+
+/**
+ * Double buffered varibright led levels (0-15) for a grid.
+ *
+ * Works like {@link GridFrameBuffer}: apps draw into the back buffer and
+ * call {@link #commit()}, and only the 8x8 quads that changed since the last
+ * commit are sent, using /grid/led/level/set, row, col or map, whichever
+ * covers the changes in one message.
+ *
+ * Levels are stored quad by quad, 64 bytes per quad, row by row, so a quad
+ * is sent straight from the buffer.
+ *
+ * @author jip
+ *
+ */
+public class GridLevelBuffer {
+    public static final int MAX_LEVEL = 15;
+
+    private final MonomeDevice device;
+    private int width, height, quadsX, quadsY;
+    private byte[] back, front;
+    private boolean valid;
+
+    public GridLevelBuffer(MonomeDevice device) {
+        this.device = device;
+        int w = device.getSizeX(), h = device.getSizeY();
+        if (w == 0 || h == 0)
+            w = h = GridFrameBuffer.DEFAULT_SIZE;
+        resize(w, h);
+    }
+
+    /**
+     * resizes the buffers, dropping their contents
+     *
+     * @param w
+     * @param h
+     */
+    synchronized void resize(int w, int h) {
+        if (w == width && h == height)
+            return;
+        width = w;
+        height = h;
+        quadsX = (w + 7) >> 3;
+        quadsY = (h + 7) >> 3;
+        back = new byte[quadsX * quadsY * 64];
+        front = new byte[back.length];
+        valid = false;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    private int index(int x, int y) {
+        return (((y >> 3) * quadsX + (x >> 3)) << 6) | ((y & 7) << 3) | (x & 7);
+    }
+
+    // drawing, on the back buffer
+
+    public synchronized void set(int x, int y, int l) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        back[index(x, y)] = (byte) (l < 0 ? 0 : l > MAX_LEVEL ? MAX_LEVEL : l);
+    }
+
+    public synchronized int get(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        return back[index(x, y)];
+    }
+
+    public synchronized void all(int l) {
+        byte v = (byte) (l < 0 ? 0 : l > MAX_LEVEL ? MAX_LEVEL : l);
+        for (int i = 0; i < back.length; i++)
+            back[i] = v;
+    }
+
+    /**
+     * sets the levels of a 8x8 area
+     *
+     * @param xoff
+     * @param yoff
+     * @param levels 64 levels, row by row
+     */
+    public synchronized void map(int xoff, int yoff, byte[] levels) {
+        for (int i = 0; i < levels.length && i < 64; i++)
+            set(xoff + (i & 7), yoff + (i >> 3), levels[i]);
+    }
+
+    public synchronized void row(int xoff, int y, byte[] levels) {
+        for (int i = 0; i < levels.length; i++)
+            set(xoff + i, y, levels[i]);
+    }
+
+    public synchronized void col(int x, int yoff, byte[] levels) {
+        for (int i = 0; i < levels.length; i++)
+            set(x, yoff + i, levels[i]);
+    }
+
+    /**
+     * forces the whole frame to be sent on next commit
+     */
+    public synchronized void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * sends the differences between the back buffer and the last committed
+     * frame
+     */
+    public synchronized void commit() {
+        GridCommands grid = device.grid;
+        if (!valid && isUniform()) {
+            grid.levelAll(back[0]);
+            System.arraycopy(back, 0, front, 0, back.length);
+            valid = true;
+            return;
+        }
+        for (int qy = 0; qy < quadsY; qy++) {
+            for (int qx = 0; qx < quadsX; qx++) {
+                int base = (qy * quadsX + qx) << 6;
+                // changed rows and columns, one bit each
+                int rows = 0, cols = 0, first = -1;
+                for (int i = 0; i < 64; i++) {
+                    if (valid && back[base + i] == front[base + i])
+                        continue;
+                    rows |= 1 << (i >> 3);
+                    cols |= 1 << (i & 7);
+                    if (first < 0)
+                        first = i;
+                }
+                if (first < 0)
+                    continue;
+                int xoff = qx << 3, yoff = qy << 3;
+                boolean oneRow = Integer.bitCount(rows) == 1;
+                boolean oneCol = Integer.bitCount(cols) == 1;
+                if (oneRow && oneCol) {
+                    grid.levelSet(xoff + (first & 7), yoff + (first >> 3), back[base + first]);
+                } else if (oneRow) {
+                    grid.levelRow(xoff, yoff + (first >> 3), back, base + (first & ~7));
+                } else if (oneCol) {
+                    grid.levelCol(xoff + (first & 7), yoff, back, base + (first & 7));
+                } else {
+                    grid.levelMap(xoff, yoff, back, base);
+                }
+                System.arraycopy(back, base, front, base, 64);
+            }
+        }
+        valid = true;
+    }
+
+    private boolean isUniform() {
+        byte first = back[0];
+        for (int i = 1; i < back.length; i++)
+            if (back[i] != first)
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,108 @@
+package jip.monome.serialosc;
+
+/**
+ * A named grid image (glyph, meter, sequencer page...) to be drawn many
+ * times through a {@link PatternCache}.
+ *
+ * Patterns are either bitmaps (leds on or off) or level images (0-15), and
+ * are drawn as whole 8x8 quads: the leds of a quad not covered by the
+ * pattern are turned off.
+ *
+ * @author jip
+ *
+ */
+public class GridPattern {
+    private final String name;
+    private final int width, height;
+    private final byte[] levels;
+    private final boolean bitmap;
+
+    private GridPattern(String name, int width, int height, byte[] levels, boolean bitmap) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.levels = levels;
+        this.bitmap = bitmap;
+    }
+
+    /**
+     * @param name
+     * @param width
+     *            up to 32
+     * @param height
+     * @param rows
+     *            one mask per row, bit x for column x
+     * @return the pattern
+     */
+    public static GridPattern bitmap(String name, int width, int height, int[] rows) {
+        if (width > 32)
+            throw new IllegalArgumentException("bitmap wider than 32: " + width);
+        byte[] levels = new byte[width * height];
+        for (int y = 0; y < height && y < rows.length; y++)
+            for (int x = 0; x < width; x++)
+                levels[y * width + x] = (byte) (((rows[y] >> x) & 1) * GridLevelBuffer.MAX_LEVEL);
+        return new GridPattern(name, width, height, levels, true);
+    }
+
+    /**
+     * @param name
+     * @param width
+     * @param height
+     * @param levels
+     *            width * height levels, row by row
+     * @return the pattern
+     */
+    public static GridPattern levels(String name, int width, int height, byte[] levels) {
+        byte[] copy = new byte[width * height];
+        for (int i = 0; i < copy.length && i < levels.length; i++)
+            copy[i] = (byte) Math.max(0, Math.min(GridLevelBuffer.MAX_LEVEL, levels[i]));
+        return new GridPattern(name, width, height, copy, false);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isBitmap() {
+        return bitmap;
+    }
+
+    public int getLevel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        return levels[y * width + x];
+    }
+
+    /**
+     * @return the 8x8 quad at qx, qy (in quads), one byte per row
+     */
+    long quad(int qx, int qy) {
+        long q = 0;
+        for (int r = 0; r < 8; r++)
+            for (int c = 0; c < 8; c++)
+                if (getLevel((qx << 3) + c, (qy << 3) + r) != 0)
+                    q |= 1L << ((r << 3) | c);
+        return q;
+    }
+
+    /**
+     * copies the 64 levels of the quad at qx, qy (in quads), row by row
+     */
+    void levelQuad(int qx, int qy, byte[] out, int off) {
+        for (int i = 0; i < 64; i++)
+            out[off + i] = (byte) getLevel((qx << 3) + (i & 7), (qy << 3) + (i >> 3));
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + width + "x" + height;
+    }
+}
@@ -0,0 +1,180 @@
+package jip.monome.serialosc;
+
+/**
+ * Current state of the grid keys, updated on the receive thread before the
+ * listeners are called, sized from /sys/size.
+ *
+ * Also measures two latencies for every key event:
+ * <ul>
+ * <li>receive to dispatch: from the datagram being read to the listeners
+ * being called</li>
+ * <li>dispatch to led echo: from the listeners being called to the first led
+ * command covering that key (the command being issued, not sent, if the
+ * output is scheduled or batched)</li>
+ * </ul>
+ *
+ * @author jip
+ *
+ */
+public class KeyState {
+    private int width, height;
+    private long[] down;
+    private long[] pressTime;
+    private volatile int pressed;
+
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram echoLatency = new LatencyHistogram();
+
+    // keys waiting for a led command, and when they were dispatched
+    private final Object echoLock = new Object();
+    private long[] echoPending;
+    private long[] dispatchTime;
+    private volatile int echoes;
+
+    KeyState(int w, int h) {
+        resize(w, h);
+    }
+
+    /**
+     * resizes the matrix, forgetting the keys held
+     */
+    synchronized void resize(int w, int h) {
+        if (w == width && h == height)
+            return;
+        synchronized (echoLock) {
+            width = w;
+            height = h;
+            down = new long[(w * h + 63) >> 6];
+            pressTime = new long[w * h];
+            pressed = 0;
+            echoPending = new long[down.length];
+            dispatchTime = new long[w * h];
+            echoes = 0;
+        }
+    }
+
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * called on the receive thread
+     */
+    synchronized void key(int x, int y, int s, long received) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int i = y * width + x;
+        long bit = 1L << i;
+        boolean was = (down[i >> 6] & bit) != 0;
+        if (s != 0 && !was) {
+            down[i >> 6] |= bit;
+            pressTime[i] = received;
+            pressed++;
+        } else if (s == 0 && was) {
+            down[i >> 6] &= ~bit;
+            pressed--;
+        }
+    }
+
+    public synchronized boolean isPressed(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return false;
+        int i = y * width + x;
+        return (down[i >> 6] & (1L << i)) != 0;
+    }
+
+    /**
+     * @return System.nanoTime() when the key was last pressed, 0 if never
+     */
+    public synchronized long getPressTime(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return 0;
+        return pressTime[y * width + x];
+    }
+
+    public int getPressedCount() {
+        return pressed;
+    }
+
+    /**
+     * @return the keys held, as {x, y} pairs
+     */
+    public synchronized int[][] getPressed() {
+        int[][] keys = new int[pressed][];
+        int n = 0;
+        for (int w = 0; w < down.length; w++) {
+            for (long bits = down[w]; bits != 0; bits &= bits - 1) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(bits);
+                keys[n++] = new int[] { i % width, i / width };
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return a copy of the matrix, bit y * width + x set for every key held
+     */
+    public synchronized long[] snapshot() {
+        return down.clone();
+    }
+
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    public LatencyHistogram getEchoLatency() {
+        return echoLatency;
+    }
+
+    // latency bookkeeping
+
+    /**
+     * called right before the listeners get a key event
+     */
+    void dispatched(int x, int y, long received) {
+        long now = System.nanoTime();
+        dispatchLatency.record(now - received);
+        synchronized (echoLock) {
+            if (x < 0 || y < 0 || x >= width || y >= height)
+                return;
+            int i = y * width + x;
+            long bit = 1L << i;
+            if ((echoPending[i >> 6] & bit) == 0) {
+                echoPending[i >> 6] |= bit;
+                echoes++;
+            }
+            dispatchTime[i] = now;
+        }
+    }
+
+    /**
+     * a led command covers the area
+     */
+    void echo(int x, int y, int w, int h) {
+        if (echoes == 0)
+            return;
+        long now = System.nanoTime();
+        synchronized (echoLock) {
+            int x1 = Math.min(x + w, width), y1 = Math.min(y + h, height);
+            for (int j = Math.max(y, 0); j < y1; j++) {
+                for (int k = Math.max(x, 0); k < x1; k++) {
+                    int i = j * width + k;
+                    long bit = 1L << i;
+                    if ((echoPending[i >> 6] & bit) != 0) {
+                        echoPending[i >> 6] &= ~bit;
+                        echoes--;
+                        echoLatency.record(now - dispatchTime[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    void echoAll() {
+        echo(0, 0, width, height);
+    }
+}
@@ -0,0 +1,95 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free histogram of durations, in nanoseconds.
+ *
+ * Buckets are logarithmic with 4 sub-buckets per power of two, so values are
+ * reported with at most 25% error.
+ *
+ * @author jip
+ *
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int BUCKETS = 64 << SUB_BITS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong(), total = new AtomicLong(), max = new AtomicLong();
+
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos))
+            ;
+    }
+
+    private static int bucket(long v) {
+        if (v < (1 << SUB_BITS))
+            return (int) v;
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    // upper bound of a bucket
+    private static long value(int bucket) {
+        if (bucket < (1 << SUB_BITS))
+            return bucket;
+        int exp = (bucket >> SUB_BITS) + SUB_BITS - 1;
+        long sub = bucket & ((1 << SUB_BITS) - 1);
+        return ((((1L << SUB_BITS) | sub) + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    /**
+     * @param p
+     *            percentile, between 0 and 100
+     * @return the value below which p percent of the recorded values fall
+     */
+    public long getPercentile(double p) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank && seen > 0)
+                return Math.min(value(b), max.get());
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++)
+            counts.set(b, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + (long) getMean() + "ns, p50=" + getPercentile(50)
+                + "ns, p99=" + getPercentile(99) + "ns, max=" + getMax() + "ns";
+    }
+}
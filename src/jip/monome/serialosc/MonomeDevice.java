@@ -1,16 +1,18 @@
 package jip.monome.serialosc;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Date;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.jmdns.ServiceInfo;
 
-import com.illposed.osc.OSCListener;
-import com.illposed.osc.OSCMessage;
-import com.illposed.osc.OSCPortIn;
-import com.illposed.osc.OSCPortOut;
-
 /**
  * Represents a monome (grid or arc) device
  * 
@@ -35,20 +37,69 @@ public class MonomeDevice {
     public static final String MSG_IN_ENCD = "/enc/delta";
     public static final String MSG_IN_ENCK = "/enc/key";
 
+    // event types
+    static final int EVENT_KEY = 0;
+    static final int EVENT_TILT = 1;
+    static final int EVENT_ENC_DELTA = 2;
+    static final int EVENT_ENC_KEY = 3;
+
     String id, host, prefix;
     int portIn, portOut, sizex, sizey;
-    boolean focus;
+    volatile boolean focus;
+
+    // bonjour service name, null if connected directly
+    final String name;
+
+    // pre-encoded /sys addresses
+    static final byte[] ADDR_SIZE = OscEncoder.address(MSG_SIZE);
+    static final byte[] ADDR_ID = OscEncoder.address(MSG_ID);
+    static final byte[] ADDR_PORT = OscEncoder.address(MSG_PORT);
+    static final byte[] ADDR_PREFIX = OscEncoder.address(MSG_PREFIX);
+    static final byte[] ADDR_HOST = OscEncoder.address(MSG_HOST);
+    static final byte[] ADDR_INFO = OscEncoder.address(MSG_INFO);
+    static final byte[] ADDR_ROTATION = OscEncoder.address(MSG_ROTATION);
 
-    OSCPortIn OSCin;
-    OSCPortOut OSCout;
+    // pre-encoded addresses of incoming events
+    final byte[] addrInGrid, addrInTilt, addrInEncd, addrInEnck;
+
+    // handles the messages from serialosc
+    final OscDecoder.Handler handler;
+    final SysInfoListener sysListener;
+
+    // null if the channel is shared
+    OscReceiver in;
+    OscEncoder out;
 
     public final GridCommands grid;
     public final RingCommands ring;
     public final TiltCommands tilt;
 
-    ArrayList<GridListener> gridListeners = new ArrayList<GridListener>();
-    ArrayList<TiltListener> tiltListeners = new ArrayList<TiltListener>();
-    ArrayList<EncListener> encListeners = new ArrayList<EncListener>();
+    final DeviceShadow shadow = new DeviceShadow();
+    final DeviceMetrics metrics = new DeviceMetrics(this);
+    volatile ConnectionSupervisor supervisor;
+
+    final KeyState keys = new KeyState(GridFrameBuffer.DEFAULT_SIZE, GridFrameBuffer.DEFAULT_SIZE);
+
+    OutputScheduler scheduler;
+    GridFrameBuffer frame;
+    GridLevelBuffer levels;
+    RingFrameBuffer rings;
+    volatile PatternCache patterns;
+
+    // copied on write, so events can be dispatched while listeners are added
+    volatile GridListener[] gridListeners = new GridListener[0];
+    volatile TiltListener[] tiltListeners = new TiltListener[0];
+    volatile EncListener[] encListeners = new EncListener[0];
+
+    // null when events are dispatched on the receive thread
+    volatile EventQueue events;
+
+    // null when not recording
+    volatile EventRecorder recorder;
+
+    // completed once size, id and focus are confirmed by serialosc
+    final CompletableFuture<MonomeDevice> ready = new CompletableFuture<MonomeDevice>();
+    volatile DeviceInfoCache infoCache;
 
     public MonomeDevice(ServiceInfo info) throws IOException {
         this(info, DEFAULT_PREFIX, DEFAULT_HOST, DEFAULT_PORT);
@@ -63,48 +114,103 @@ public class MonomeDevice {
     }
 
     public MonomeDevice(ServiceInfo info, String prefix, String host, int portn) throws IOException {
+        this(info.getName(), new InetSocketAddress(info.getInetAddresses()[0], info.getPort()),
+                prefix, host, portn, null);
+    }
+
+    /**
+     * connects to a serialosc device server at a known address, without
+     * bonjour. The id is unknown until the device answers /sys/info.
+     * 
+     * @param serialosc
+     * @param prefix
+     * @param host
+     * @param portn
+     * @throws IOException
+     */
+    public MonomeDevice(InetSocketAddress serialosc, String prefix, String host, int portn) throws IOException {
+        this(null, serialosc, prefix, host, portn, null);
+    }
+
+    /**
+     * @param id
+     * @param serialosc
+     *            address of the serialosc device server
+     * @param prefix
+     * @param host
+     * @param portn
+     * @param shared
+     *            channel bound to portn and read by someone else (see
+     *            {@link MonomeHub}), or null to open our own
+     * @throws IOException
+     */
+    MonomeDevice(String id, InetSocketAddress serialosc, String prefix, String host, int portn,
+            DatagramChannel shared) throws IOException {
+        this(id, serialosc, prefix, host, portn, shared, true);
+    }
+
+    /**
+     * @param handshake
+     *            false to leave taking the focus and requesting the device
+     *            info to the caller, once it can route the answers (see
+     *            {@link #connect()})
+     */
+    MonomeDevice(String id, InetSocketAddress serialosc, String prefix, String host, int portn,
+            DatagramChannel shared, boolean handshake) throws IOException {
 
         this.portIn = portn;
         this.prefix = prefix;
         this.host = host;
-        this.id = info.getName();
+        this.id = id;
+        this.name = id;
         
-        // create and open the input port
-        OSCin = new OSCPortIn(portn);
-
-        // add sysinfo listeners
-        SysInfoListener sysListener = new SysInfoListener();
-        OSCin.addListener(MSG_SIZE, sysListener);
-        OSCin.addListener(MSG_PORT, sysListener);
-        OSCin.addListener(MSG_ID, sysListener);
-        OSCin.addListener(MSG_PREFIX, sysListener);
-        OSCin.addListener(MSG_HOST, sysListener);
-
-        // add message listeners
-        MsgListener msgListener = new MsgListener();
-        OSCin.addListener(prefix + MSG_IN_GRID, msgListener);
-        OSCin.addListener(prefix + MSG_IN_TILT, msgListener);
-        OSCin.addListener(prefix + MSG_IN_ENCD, msgListener);
-        OSCin.addListener(prefix + MSG_IN_ENCK, msgListener);
-
-        OSCin.startListening();
+        addrInGrid = OscEncoder.address(prefix + MSG_IN_GRID);
+        addrInTilt = OscEncoder.address(prefix + MSG_IN_TILT);
+        addrInEncd = OscEncoder.address(prefix + MSG_IN_ENCD);
+        addrInEnck = OscEncoder.address(prefix + MSG_IN_ENCK);
+        sysListener = new SysInfoListener();
+        handler = new MsgListener(sysListener);
+
+        // create and open the input port, also used to send
+        DatagramChannel channel = shared;
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.socket().bind(new InetSocketAddress(portn));
+            // portn 0 picks a free port
+            portIn = channel.socket().getLocalPort();
+        }
 
         // configure serialosc port
-        this.portOut = info.getPort();
-        OSCout = new OSCPortOut(info.getInetAddresses()[0], this.portOut);
+        this.portOut = serialosc.getPort();
+        out = new OscEncoder(channel, serialosc);
+        out.metrics = metrics;
+        out.coalesce(ADDR_PORT, 0);
+        out.coalesce(ADDR_PREFIX, 0);
+        out.coalesce(ADDR_HOST, 0);
+        out.coalesce(ADDR_ROTATION, 0);
+
+        if (shared == null) {
+            in = new OscReceiver(channel, handler);
+            in.startListening("serialosc-in " + prefix);
+        }
 
-        // on creation, this object gets the focus        
-        setFocus();      
-        
-        // get device details (id and size)
-        OSCMessage infoMsg = new OSCMessage();
-        infoMsg.setAddress(MSG_INFO);
-        OSCout.send(infoMsg);
-       
         // Device commands
         grid = new GridCommands(this);
         ring = new RingCommands(this);
         tilt = new TiltCommands(this);
+
+        if (handshake)
+            connect();
+    }
+
+    /**
+     * takes the focus and requests the device details (id and size)
+     * 
+     * @throws IOException
+     */
+    void connect() throws IOException {
+        setFocus();
+        requestInfo();
     }
 
     /**
@@ -112,13 +218,207 @@ public class MonomeDevice {
      * 
      * @param l
      */
-    public void addListener(Object l) {
-        if (l instanceof GridListener)
-            gridListeners.add((GridListener) l);
-        if (l instanceof TiltListener)
-            tiltListeners.add((TiltListener) l);
-        if (l instanceof EncListener)
-            encListeners.add((EncListener) l);
+    public synchronized void addListener(Object l) {
+        add(l, l);
+    }
+
+    /**
+     * hooks a listener run on an executor, so a slow or blocking listener
+     * doesn't delay the others. The listener gets its events in order, one
+     * at a time; see {@link EventQueue#newListenerExecutor()} for an
+     * executor using virtual threads when available.
+     * 
+     * @param l
+     * @param executor
+     * @param capacity
+     *            max number of events waiting for this listener, a power of
+     *            two
+     * @return the queue of the listener
+     */
+    public synchronized EventQueue addListener(Object l, Executor executor, int capacity) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor is null");
+        EventQueue q = new EventQueue(this, l, capacity, executor);
+        q.start();
+        add(new QueuedListener(q), l);
+        return q;
+    }
+
+    public EventQueue addListener(Object l, Executor executor) {
+        return addListener(l, executor, EventQueue.DEFAULT_CAPACITY);
+    }
+
+    // hooks as for the interfaces l implements
+    private void add(Object as, Object l) {
+        if (l instanceof GridListener) {
+            GridListener[] ls = Arrays.copyOf(gridListeners, gridListeners.length + 1);
+            ls[ls.length - 1] = (GridListener) as;
+            gridListeners = ls;
+        }
+        if (l instanceof TiltListener) {
+            TiltListener[] ls = Arrays.copyOf(tiltListeners, tiltListeners.length + 1);
+            ls[ls.length - 1] = (TiltListener) as;
+            tiltListeners = ls;
+        }
+        if (l instanceof EncListener) {
+            EncListener[] ls = Arrays.copyOf(encListeners, encListeners.length + 1);
+            ls[ls.length - 1] = (EncListener) as;
+            encListeners = ls;
+        }
+    }
+
+    /**
+     * unhooks a listener, also one run on an executor
+     * 
+     * @param l
+     */
+    public synchronized void removeListener(Object l) {
+        gridListeners = without(gridListeners, l);
+        tiltListeners = without(tiltListeners, l);
+        encListeners = without(encListeners, l);
+    }
+
+    // copy of ls without the entries standing for l
+    private static <T> T[] without(T[] ls, Object l) {
+        T[] kept = Arrays.copyOf(ls, ls.length);
+        int n = 0;
+        for (T as : ls) {
+            if (as == l)
+                continue;
+            if (as instanceof QueuedListener && ((QueuedListener) as).queue.listener == l) {
+                ((QueuedListener) as).queue.stop();
+                continue;
+            }
+            kept[n++] = as;
+        }
+        return n == ls.length ? ls : Arrays.copyOf(kept, n);
+    }
+
+    /**
+     * delivers events to the listeners from a dedicated thread instead of
+     * the receive thread
+     *
+     * @param capacity
+     *            max number of pending events, a power of two
+     * @return the event queue
+     */
+    public synchronized EventQueue dispatchOnThread(int capacity) {
+        return setEventQueue(new EventQueue(this, capacity, null));
+    }
+
+    /**
+     * delivers events to the listeners from tasks run by an executor, one at
+     * a time
+     *
+     * @param executor
+     * @param capacity
+     *            max number of pending events, a power of two
+     * @return the event queue
+     */
+    public synchronized EventQueue dispatchOn(Executor executor, int capacity) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor is null");
+        return setEventQueue(new EventQueue(this, capacity, executor));
+    }
+
+    /**
+     * delivers events to the listeners from the receive thread (default)
+     */
+    public synchronized void dispatchInline() {
+        setEventQueue(null);
+    }
+
+    public EventQueue getEventQueue() {
+        return events;
+    }
+
+    private EventQueue setEventQueue(EventQueue q) {
+        if (events != null)
+            events.stop();
+        if (q != null)
+            q.start();
+        events = q;
+        return q;
+    }
+
+    /**
+     * called from the receive thread for every incoming event
+     */
+    void event(int type, int a, int b, int c, int d, long received) {
+        EventRecorder r = recorder;
+        if (r != null)
+            r.event(type, a, b, c, d, received);
+        if (type == EVENT_KEY)
+            keys.key(a, b, c, received);
+        EventQueue q = events;
+        if (q != null)
+            q.offer(type, a, b, c, d, received);
+        else
+            dispatch(type, a, b, c, d, received);
+    }
+
+    /**
+     * delivers a replayed event straight to the listeners, from the calling
+     * thread: not through the device event queue, nor to the recorder
+     */
+    void replayed(int type, int a, int b, int c, int d, long time) {
+        if (type == EVENT_KEY)
+            keys.key(a, b, c, time);
+        dispatch(type, a, b, c, d, time);
+    }
+
+    /**
+     * @return true if msg is an event sent to this device prefix
+     */
+    boolean isEvent(OscDecoder msg) {
+        return msg.is(addrInGrid) || msg.is(addrInEncd) || msg.is(addrInEnck) || msg.is(addrInTilt);
+    }
+
+    /**
+     * calls the listeners
+     */
+    void dispatch(int type, int a, int b, int c, int d, long received) {
+        long start = System.nanoTime();
+        switch (type) {
+        case EVENT_KEY:
+            keys.dispatched(a, b, received);
+            for (GridListener l : gridListeners) {
+                if (!queued(l, type, a, b, c, d, received))
+                    l.press(a, b, c);
+            }
+            metrics.dispatched(DeviceMetrics.GRID, System.nanoTime() - start);
+            break;
+        case EVENT_TILT:
+            for (TiltListener l : tiltListeners) {
+                if (!queued(l, type, a, b, c, d, received))
+                    l.tilt(a, b, c, d);
+            }
+            metrics.dispatched(DeviceMetrics.TILT, System.nanoTime() - start);
+            break;
+        case EVENT_ENC_DELTA:
+            for (EncListener l : encListeners) {
+                if (!queued(l, type, a, b, c, d, received))
+                    l.delta(a, b);
+            }
+            metrics.dispatched(DeviceMetrics.RING, System.nanoTime() - start);
+            break;
+        case EVENT_ENC_KEY:
+            for (EncListener l : encListeners) {
+                if (!queued(l, type, a, b, c, d, received))
+                    l.press(a, b);
+            }
+            metrics.dispatched(DeviceMetrics.RING, System.nanoTime() - start);
+            break;
+        }
+    }
+
+    // queues the event for a listener run on an executor, keeping the time
+    // it was received
+    private static boolean queued(Object l, int type, int a, int b, int c, int d, long received) {
+        if (!(l instanceof QueuedListener))
+            return false;
+        ((QueuedListener) l).event(type, a, b, c, d, received);
+        return true;
     }
 
     /**
@@ -129,8 +429,43 @@ public class MonomeDevice {
         setPortIn();
         setPrefix();
         setHost();
+        sysListener.focusPort = sysListener.focusHost = sysListener.focusPrefix = true;
         focus = true;
     }
+
+    /**
+     * sends again the last led, ring and tilt state sent to the device, in
+     * bundles of its own: a batch the app has open is neither sent early
+     * nor mixed with the replay
+     */
+    public void replay() {
+        out.sendApart(new Runnable() {
+            @Override
+            public void run() {
+                shadow.replay(MonomeDevice.this);
+            }
+        });
+    }
+
+    /**
+     * asks the device for its id, size...
+     */
+    void requestInfo() {
+        sysListener.confirmed = 0;
+        out.send(ADDR_INFO);
+    }
+
+    /**
+     * points the device to a new serialosc address, e.g. after a replug
+     */
+    void retarget(InetSocketAddress serialosc) {
+        portOut = serialosc.getPort();
+        out.target = serialosc;
+    }
+
+    InetSocketAddress getTarget() {
+        return (InetSocketAddress) out.target;
+    }
         
     // /sys methods
     /**
@@ -140,10 +475,7 @@ public class MonomeDevice {
      * @throws IOException
      */
     private void setPrefix() throws IOException {
-        OSCMessage prefixMsg = new OSCMessage();
-        prefixMsg.setAddress(MSG_PREFIX);
-        prefixMsg.addArgument(prefix);
-        OSCout.send(prefixMsg);
+        out.send(ADDR_PREFIX, prefix);
     }
 
     /**
@@ -153,10 +485,7 @@ public class MonomeDevice {
      * @throws IOException
      */
     private void setPortIn() throws IOException {
-        OSCMessage portMsg = new OSCMessage();
-        portMsg.setAddress(MSG_PORT);
-        portMsg.addArgument(new Integer(portIn));
-        OSCout.send(portMsg);
+        out.send(ADDR_PORT, portIn);
     }
     
     /**
@@ -166,10 +495,7 @@ public class MonomeDevice {
      * @throws IOException
      */
     private void setHost() throws IOException {
-        OSCMessage hostMsg = new OSCMessage();
-        hostMsg.setAddress(MSG_HOST);
-        hostMsg.addArgument(host);
-        OSCout.send(hostMsg);
+        out.send(ADDR_HOST, host);
     }
 
     /**
@@ -179,10 +505,168 @@ public class MonomeDevice {
      * @throws IOException
      */
     public void setRotation(int rot) throws IOException {
-        OSCMessage rotMsg = new OSCMessage();
-        rotMsg.setAddress(MSG_ROTATION);
-        rotMsg.addArgument(new Integer(rot));
-        OSCout.send(rotMsg);
+        out.send(ADDR_ROTATION, rot);
+    }
+
+    /**
+     * records the events received and the commands sent to a file, until
+     * {@link #stopRecording()}
+     *
+     * @param file
+     * @param capacity
+     *            max number of records
+     * @return the recorder
+     * @throws IOException
+     */
+    public synchronized EventRecorder startRecording(File file, long capacity) throws IOException {
+        stopRecording();
+        recorder = new EventRecorder(file, capacity);
+        out.recorder = recorder;
+        return recorder;
+    }
+
+    public synchronized void stopRecording() {
+        EventRecorder r = recorder;
+        if (r == null)
+            return;
+        recorder = null;
+        out.recorder = null;
+        r.close();
+    }
+
+    /**
+     * gets the traffic, error and dispatch time counters of this device
+     *
+     * @return the metrics
+     */
+    public DeviceMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * gets the state of the grid keys, with press latency statistics
+     *
+     * @return the key state
+     */
+    public KeyState getKeyState() {
+        return keys;
+    }
+
+    /**
+     * sends the commands from a background thread, at most rate times per
+     * second, keeping only the latest command for every led, row, ring...
+     *
+     * @param rate
+     *            refresh rate, in Hz
+     * @param capacity
+     *            max number of queued commands
+     * @return the running scheduler
+     */
+    public synchronized OutputScheduler startScheduler(int rate, int capacity) {
+        stopScheduler();
+        scheduler = new OutputScheduler(out, rate, capacity);
+        scheduler.start();
+        out.scheduler = scheduler;
+        return scheduler;
+    }
+
+    public OutputScheduler startScheduler(int rate) {
+        return startScheduler(rate, OutputScheduler.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * goes back to sending commands from the caller thread, once the queued
+     * ones are sent
+     */
+    public synchronized void stopScheduler() {
+        if (scheduler == null)
+            return;
+        synchronized (out) {
+            out.scheduler = null;
+            scheduler.stop();
+        }
+        scheduler = null;
+    }
+
+    public synchronized OutputScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * starts packing the commands in OSC bundles instead of sending them,
+     * until {@link #flush()} is called. Commands sent from any thread are
+     * batched.
+     */
+    public void beginBatch() {
+        out.beginBatch();
+    }
+
+    /**
+     * sends the commands batched since {@link #beginBatch()}, in as few
+     * datagrams as fit in the mtu
+     */
+    public void flush() {
+        out.flushBatch();
+    }
+
+    /**
+     * sets the max datagram size used for batches
+     *
+     * @param mtu
+     */
+    public void setMtu(int mtu) {
+        out.setMtu(mtu);
+    }
+
+    /**
+     * @return messages and datagrams sent by batch flushes and scheduler ticks
+     */
+    public FlushStats getFlushStats() {
+        return out.flushStats;
+    }
+
+    /**
+     * gets the led frame buffer of this device, sized from /sys/size
+     *
+     * @return the frame buffer
+     */
+    public synchronized GridFrameBuffer getFrameBuffer() {
+        if (frame == null)
+            frame = new GridFrameBuffer(this);
+        return frame;
+    }
+
+    /**
+     * gets the varibright level buffer of this device, sized from /sys/size
+     *
+     * @return the level buffer
+     */
+    public synchronized GridLevelBuffer getLevelBuffer() {
+        if (levels == null)
+            levels = new GridLevelBuffer(this);
+        return levels;
+    }
+
+    /**
+     * gets the cache of compiled patterns of this device
+     *
+     * @return the pattern cache
+     */
+    public synchronized PatternCache getPatternCache() {
+        if (patterns == null)
+            patterns = new PatternCache(this, PatternCache.DEFAULT_CAPACITY);
+        return patterns;
+    }
+
+    /**
+     * gets the ring buffer of this device, for 4 encoders
+     *
+     * @return the ring buffer
+     */
+    public synchronized RingFrameBuffer getRingBuffer() {
+        if (rings == null)
+            rings = new RingFrameBuffer(this, RingFrameBuffer.DEFAULT_ENCODERS);
+        return rings;
     }
 
     // some useful methods
@@ -207,10 +691,96 @@ public class MonomeDevice {
         return this.focus;
     }
 
+    /**
+     * @return a future completed, on the receive thread, once serialosc has
+     *         confirmed the size, the id and our focus (port and prefix)
+     */
+    public CompletableFuture<MonomeDevice> whenReady() {
+        return ready;
+    }
+
+    /**
+     * waits for the device to be ready
+     * 
+     * @param timeout
+     * @param unit
+     * @return false if the device didn't answer in time
+     * @throws InterruptedException
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            ready.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    public boolean isReady() {
+        return ready.isDone();
+    }
+
+    /**
+     * records the details of the device in a cache every time serialosc
+     * confirms them, so the next start can be warm
+     * 
+     * @param cache
+     *            or null to stop recording
+     */
+    public void setInfoCache(DeviceInfoCache cache) {
+        this.infoCache = cache;
+        if (cache != null && ready.isDone())
+            cache.put(this);
+    }
+
+    /**
+     * takes the id and size last seen, until serialosc tells otherwise, so
+     * the app can draw before /sys/info is answered
+     */
+    void preset(String id, int sizex, int sizey) {
+        synchronized (this) {
+            int confirmed = sysListener.confirmed;
+            if (id != null && (confirmed & SysInfoListener.ID) == 0)
+                this.id = id;
+            if (sizex <= 0 || sizey <= 0 || (confirmed & SysInfoListener.SIZE) != 0)
+                return;
+            this.sizex = sizex;
+            this.sizey = sizey;
+            if (frame != null)
+                frame.resize(sizex, sizey);
+            if (levels != null)
+                levels.resize(sizex, sizey);
+            keys.resize(sizex, sizey);
+        }
+    }
+
+    /**
+     * stops the scheduler and dispatch threads and closes the port, unless
+     * it's shared
+     */
+    public void close() {
+        synchronized (this) {
+            if (rings != null)
+                rings.stopAnimation();
+        }
+        stopScheduler();
+        dispatchInline();
+        stopRecording();
+        metrics.unregister();
+        if (in != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Do nothing
+            }
+        }
+    }
+
     @Override
     protected void finalize() throws Throwable {
-        OSCin.close();
-        OSCout.close();
+        close();
         super.finalize();
     }
 
@@ -218,81 +788,100 @@ public class MonomeDevice {
      * manages /sys messages
      * 
      */
-    class SysInfoListener implements OSCListener {
+    class SysInfoListener implements OscDecoder.Handler {
+        // /sys answers confirming the device since the last /sys/info
+        static final int SIZE = 1, ID = 2, PORT = 4, PREFIX = 8, ALL = 15, STORED = 16;
 
         boolean focusPort = true, 
                 focusHost = true, 
                 focusPrefix = true;
+        volatile int confirmed;
         
-        // OSCListener interface
         @Override
-        public void acceptMessage(Date date, OSCMessage msg) {
-            String address = msg.getAddress();
-            if (MSG_SIZE.equals(address)) {
-                sizex = ((Integer) msg.getArguments()[0]).intValue();
-                sizey = ((Integer) msg.getArguments()[1]).intValue();
-
-            } else if (MSG_ID.equals(address)) {
-                id = (String) msg.getArguments()[0];
+        public void accept(OscDecoder msg) {
+            if (msg.is(ADDR_SIZE)) {
+                synchronized (MonomeDevice.this) {
+                    confirmed |= SIZE;
+                    sizex = msg.getInt(0);
+                    sizey = msg.getInt(1);
+                    if (frame != null)
+                        frame.resize(sizex, sizey);
+                    if (levels != null)
+                        levels.resize(sizex, sizey);
+                    keys.resize(sizex, sizey);
+                }
+
+            } else if (msg.is(ADDR_ID)) {
+                synchronized (MonomeDevice.this) {
+                    confirmed |= ID;
+                    id = msg.getString(0);
+                }
                 
             // stop sending messages when focus lost
-            } else if (MSG_PORT.equals(address)) {
-                int newPort = ((Integer) msg.getArguments()[0]).intValue();
+            } else if (msg.is(ADDR_PORT)) {
+                int newPort = msg.getInt(0);
                 focusPort = (newPort == portIn);               
-            } else if (MSG_HOST.equals(address)) {
+                if (focusPort)
+                    confirmed |= PORT;
+            } else if (msg.is(ADDR_HOST)) {
 //                if(host != null){
-//                    String newHost = (String) msg.getArguments()[0];                
+//                    String newHost = msg.getString(0);
 //                    focusHost = host.equals(newHost);
 //                }
-            } else if (MSG_PREFIX.equals(address)) {
-                String newPrefix = (String) msg.getArguments()[0];
+            } else if (msg.is(ADDR_PREFIX)) {
+                String newPrefix = msg.getString(0);
                 focusPrefix = prefix.equals(newPrefix);
+                if (focusPrefix)
+                    confirmed |= PREFIX;
+            } else {
+                return;
             }
+            boolean had = focus;
             focus = (focusPort && focusHost && focusPrefix);
-            
+            ConnectionSupervisor s = supervisor;
+            if (had && !focus && s != null)
+                s.focusLost();
+            if (focus && confirmed == ALL)
+                confirm();
+        }
+
+        private void confirm() {
+            confirmed = ALL | STORED;
+            DeviceInfoCache c = infoCache;
+            if (c != null)
+                c.put(MonomeDevice.this);
+            ready.complete(MonomeDevice.this);
         }
     }
 
     /**
-     * manages event messages
+     * manages event messages, decoded straight from the received datagram
      * 
      */
-    class MsgListener implements OSCListener {
+    class MsgListener implements OscDecoder.Handler {
+        private final OscDecoder.Handler sys;
+
+        MsgListener(OscDecoder.Handler sys) {
+            this.sys = sys;
+        }
 
-        // OSCListener interface
         @Override
-        public void acceptMessage(Date date, OSCMessage msg) {
-            String address = msg.getAddress();
-            Object[] args = msg.getArguments();
-            if (address.endsWith(MSG_IN_GRID)) {
-                Integer x = (Integer) args[0];
-                Integer y = (Integer) args[1];
-                Integer state = (Integer) args[2];
-
-                for (GridListener l : gridListeners) {
-                    l.press(x, y, state);
-                }
-            } else if (address.endsWith(MSG_IN_TILT)) {
-                Integer sensor = (Integer) args[0];
-                Integer x = (Integer) args[1];
-                Integer y = (Integer) args[2];
-                Integer z = (Integer) args[3];
-
-                for (TiltListener l : tiltListeners) {
-                    l.tilt(sensor, x, y, z);
-                }
-            } else if (address.endsWith(MSG_IN_ENCD)) {
-                Integer encoder = (Integer) args[0];
-                Integer delta = (Integer) args[1];
-                for (EncListener l : encListeners) {
-                    l.delta(encoder, delta);
-                }
-            } else if (address.endsWith(MSG_IN_ENCK)) {
-                Integer encoder = (Integer) args[0];
-                Integer state = (Integer) args[1];
-                for (EncListener l : encListeners) {
-                    l.press(encoder, state);
-                }
+        public void accept(OscDecoder msg) {
+            if (msg.is(addrInGrid)) {
+                metrics.received(DeviceMetrics.GRID, msg.getSize());
+                event(EVENT_KEY, msg.getInt(0), msg.getInt(1), msg.getInt(2), 0, msg.received);
+            } else if (msg.is(addrInTilt)) {
+                metrics.received(DeviceMetrics.TILT, msg.getSize());
+                event(EVENT_TILT, msg.getInt(0), msg.getInt(1), msg.getInt(2), msg.getInt(3), msg.received);
+            } else if (msg.is(addrInEncd)) {
+                metrics.received(DeviceMetrics.RING, msg.getSize());
+                event(EVENT_ENC_DELTA, msg.getInt(0), msg.getInt(1), 0, 0, msg.received);
+            } else if (msg.is(addrInEnck)) {
+                metrics.received(DeviceMetrics.RING, msg.getSize());
+                event(EVENT_ENC_KEY, msg.getInt(0), msg.getInt(1), 0, 0, msg.received);
+            } else {
+                metrics.received(DeviceMetrics.SYS, msg.getSize());
+                sys.accept(msg);
             }
         }
     }
@@ -0,0 +1,171 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.jmdns.ServiceInfo;
+
+/**
+ * Serves many devices from a single UDP port and a single receive thread.
+ *
+ * Every device registered gets its own prefix; serialosc is told to send
+ * all of them to the hub port. Incoming packets are routed to their device
+ * by source port (each serialosc device server has its own), or by prefix,
+ * and all the output goes through the same channel.
+ *
+ * @author jip
+ *
+ */
+public class MonomeHub {
+    private final String host;
+    private final int port;
+    private final DatagramChannel channel;
+    private final OscReceiver in;
+
+    // copied on write, read by the receive thread
+    private volatile MonomeDevice[] devices = new MonomeDevice[0];
+    private final HashMap<String, MonomeDevice> byName = new HashMap<String, MonomeDevice>();
+    private int registered;
+
+    public MonomeHub(int port) throws IOException {
+        this(MonomeDevice.DEFAULT_HOST, port);
+    }
+
+    /**
+     * @param host
+     *            the host serialosc sends to
+     * @param port
+     *            the port shared by all devices, 0 for any free port
+     * @throws IOException
+     */
+    public MonomeHub(String host, int port) throws IOException {
+        this.host = host;
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+        // port 0 picks a free port
+        this.port = channel.socket().getLocalPort();
+        in = new OscReceiver(channel, new Router());
+        in.startListening("serialosc-hub " + this.port);
+    }
+
+    /**
+     * connects to a device through the hub
+     *
+     * @param info
+     * @param prefix
+     *            a prefix not used by any other device of the hub
+     * @return the device
+     * @throws IOException
+     */
+    public MonomeDevice register(ServiceInfo info, String prefix) throws IOException {
+        return register(info.getName(), new InetSocketAddress(info.getInetAddresses()[0], info.getPort()), prefix);
+    }
+
+    synchronized MonomeDevice register(String name, InetSocketAddress serialosc, String prefix) throws IOException {
+        for (MonomeDevice d : devices) {
+            if (d.prefix.equals(prefix))
+                throw new IllegalArgumentException("prefix already in use: " + prefix);
+        }
+        MonomeDevice d = new MonomeDevice(name, serialosc, prefix, host, port, channel, false);
+        MonomeDevice[] ds = Arrays.copyOf(devices, devices.length + 1);
+        ds[ds.length - 1] = d;
+        devices = ds;
+        byName.put(name, d);
+        registered++;
+        // routed from now on, so the answers aren't dropped
+        try {
+            d.connect();
+        } catch (IOException e) {
+            unregister(d);
+            throw e;
+        }
+        return d;
+    }
+
+    /**
+     * registers every device found by a discovery service and not yet
+     * registered, with prefixes prefix/0, prefix/1...
+     *
+     * @param zeroconf
+     * @param prefix
+     * @return the devices registered
+     */
+    public synchronized List<MonomeDevice> registerAll(MonomeZeroconf zeroconf, String prefix) {
+        List<MonomeDevice> added = new ArrayList<MonomeDevice>();
+        for (String name : zeroconf.getDevices()) {
+            ServiceInfo info = zeroconf.monomesMap.get(name);
+            if (info == null || byName.containsKey(name))
+                continue;
+            try {
+                added.add(register(info, prefix + "/" + registered));
+            } catch (IOException e) {
+                MonomeZeroconf.logger.severe("Couldn't connect to " + name + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                // a bad service doesn't stop the others
+                MonomeZeroconf.logger.severe("Couldn't register " + name + ": " + e);
+            }
+        }
+        return added;
+    }
+
+    public synchronized void unregister(MonomeDevice d) {
+        List<MonomeDevice> ds = new ArrayList<MonomeDevice>(Arrays.asList(devices));
+        if (!ds.remove(d))
+            return;
+        devices = ds.toArray(new MonomeDevice[ds.size()]);
+        byName.values().remove(d);
+        d.close();
+    }
+
+    public MonomeDevice[] getDevices() {
+        return devices.clone();
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * closes the hub port and all its devices
+     */
+    public synchronized void close() {
+        for (MonomeDevice d : devices)
+            d.close();
+        devices = new MonomeDevice[0];
+        byName.clear();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * routes the messages to their device
+     */
+    class Router implements OscDecoder.Handler {
+        @Override
+        public void accept(OscDecoder msg) {
+            MonomeDevice[] ds = devices;
+            int source = msg.source.getPort();
+            for (MonomeDevice d : ds) {
+                if (d.portOut == source) {
+                    d.handler.accept(msg);
+                    return;
+                }
+            }
+            // unknown sender: only events carry a prefix
+            for (MonomeDevice d : ds) {
+                if (d.isEvent(msg)) {
+                    d.handler.accept(msg);
+                    return;
+                }
+            }
+        }
+    }
+}
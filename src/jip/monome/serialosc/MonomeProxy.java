@@ -0,0 +1,368 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Shares one device between several apps without focus fights.
+ *
+ * The proxy holds the only connection to serialosc. Each app gets a
+ * {@link Layer}: a local port speaking the serialosc device protocol
+ * (see {@link SerialoscEmulator}), where it connects as it would to the
+ * device, with its own prefix. The leds and rings of the layers are
+ * composited, bottom to top, into the frame of the real device at a fixed
+ * rate, and only the differences are sent. Key presses go to the topmost
+ * layer covering the key (releases to the layer that got the press),
+ * encoder events to the topmost layer owning the encoder, tilt to every
+ * layer. A tilt sensor is on while any layer turns it on, and the intensity
+ * is the one set by the topmost layer setting it.
+ *
+ * @author jip
+ *
+ */
+public class MonomeProxy implements GridListener, EncListener, TiltListener, Runnable {
+    public static final int DEFAULT_RATE = 60;
+    // millis to wait for the device size
+    public static final long READY_TIMEOUT = 2000;
+
+    /**
+     * how a layer is composited on the layers below
+     */
+    public static final int PRIORITY = 0, OR = 1, MASK = 2;
+
+    private final MonomeDevice device;
+    private final int width, height, encoders;
+
+    // copied on write, bottom to top
+    private volatile Layer[] layers = new Layer[0];
+
+    // layer pressing each key
+    private final Layer[] owner;
+
+    private final byte[] frame, layerLevels, rings, layerRings;
+    // last tilt sensors and intensity sent to the device
+    private int tilt, intensity = -1;
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final long period;
+    private Thread thread;
+    private volatile boolean running;
+
+    public MonomeProxy(MonomeDevice device) throws IOException {
+        this(device, DEFAULT_RATE);
+    }
+
+    /**
+     * waits for the device to report its size, see
+     * {@link MonomeDevice#whenReady()}
+     * 
+     * @param device
+     *            the device shared
+     * @param rate
+     *            max frames sent to the device per second
+     * @throws IOException
+     *             if the device doesn't answer in {@link #READY_TIMEOUT}
+     */
+    public MonomeProxy(MonomeDevice device, int rate) throws IOException {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        try {
+            if (!device.awaitReady(READY_TIMEOUT, TimeUnit.MILLISECONDS))
+                throw new IOException("device not ready: " + device.getPrefix());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for " + device.getPrefix());
+        }
+        this.device = device;
+        width = device.getSizeX();
+        height = device.getSizeY();
+        encoders = RingFrameBuffer.DEFAULT_ENCODERS;
+        owner = new Layer[width * height];
+        frame = new byte[width * height];
+        layerLevels = new byte[width * height];
+        rings = new byte[encoders * RingFrameBuffer.LEDS];
+        layerRings = new byte[encoders * RingFrameBuffer.LEDS];
+        period = 1000000000L / rate;
+        device.addListener(this);
+    }
+
+    /**
+     * adds a layer on top of the others, covering the whole device and
+     * owning every encoder
+     *
+     * @param name
+     *            appended to the device id reported to the app
+     * @param mode
+     *            {@link #PRIORITY}, {@link #OR} or {@link #MASK}
+     * @return the layer, give its address to the app
+     * @throws IOException
+     */
+    public Layer addLayer(String name, int mode) throws IOException {
+        return addLayer(name, mode, 0, 0, width, height, (1 << encoders) - 1);
+    }
+
+    /**
+     * adds a layer on top of the others
+     *
+     * @param name
+     * @param mode
+     * @param x
+     *            region of the grid the layer draws and gets keys from
+     * @param y
+     * @param w
+     * @param h
+     * @param encoderMask
+     *            bit n set if the layer gets the events of encoder n
+     * @return the layer
+     * @throws IOException
+     */
+    public synchronized Layer addLayer(String name, int mode, int x, int y, int w, int h, int encoderMask)
+            throws IOException {
+        String id = (device.getId() != null ? device.getId() : "proxy") + "/" + name;
+        Layer l = new Layer(new SerialoscEmulator(id, width, height, encoders, DeviceShadow.MAX_SENSORS), mode, x,
+                y, w, h, encoderMask);
+        l.endpoint.changed = new Runnable() {
+            @Override
+            public void run() {
+                changed();
+            }
+        };
+        Layer[] ls = Arrays.copyOf(layers, layers.length + 1);
+        ls[ls.length - 1] = l;
+        layers = ls;
+        changed();
+        return l;
+    }
+
+    public synchronized void removeLayer(Layer l) {
+        Layer[] ls = layers;
+        for (int i = 0; i < ls.length; i++) {
+            if (ls[i] == l) {
+                Layer[] n = new Layer[ls.length - 1];
+                System.arraycopy(ls, 0, n, 0, i);
+                System.arraycopy(ls, i + 1, n, i, n.length - i);
+                layers = n;
+                l.endpoint.close();
+                changed();
+                return;
+            }
+        }
+    }
+
+    public Layer[] getLayers() {
+        return layers.clone();
+    }
+
+    public synchronized void start() {
+        if (thread != null)
+            return;
+        running = true;
+        thread = new Thread(this, "serialosc-proxy " + device.getPrefix());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stops compositing, unhooks from the device and closes the layers; the
+     * device stays open
+     */
+    public void stop() {
+        device.removeListener(this);
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Layer l : layers)
+            l.endpoint.close();
+    }
+
+    private void changed() {
+        dirty.set(true);
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            next += period;
+            if (next < System.nanoTime())
+                next = System.nanoTime() + period;
+            if (dirty.getAndSet(false))
+                composite();
+        }
+    }
+
+    /**
+     * composites the layers and sends the differences
+     */
+    synchronized void composite() {
+        Arrays.fill(frame, (byte) 0);
+        Arrays.fill(rings, (byte) 0);
+        boolean hasRings = false;
+        int t = 0, in = -1;
+        for (Layer l : layers) {
+            t |= l.endpoint.getTiltActive();
+            if (l.endpoint.hasIntensity())
+                in = l.endpoint.getIntensity();
+            l.endpoint.copyLevels(layerLevels);
+            for (int y = Math.max(0, l.y); y < height && y < l.y + l.h; y++) {
+                for (int x = Math.max(0, l.x); x < width && x < l.x + l.w; x++) {
+                    int i = y * width + x;
+                    frame[i] = blend(l.mode, frame[i], layerLevels[i]);
+                }
+            }
+            if (!l.endpoint.hasRings())
+                continue;
+            hasRings = true;
+            l.endpoint.copyRings(layerRings);
+            for (int enc = 0; enc < encoders; enc++) {
+                if ((l.encoderMask & (1 << enc)) == 0)
+                    continue;
+                for (int i = enc * RingFrameBuffer.LEDS; i < (enc + 1) * RingFrameBuffer.LEDS; i++)
+                    rings[i] = blend(l.mode, rings[i], layerRings[i]);
+            }
+        }
+        GridLevelBuffer b = device.getLevelBuffer();
+        for (int y = 0; y < height; y++)
+            for (int x = 0; x < width; x++)
+                b.set(x, y, frame[y * width + x]);
+        device.beginBatch();
+        b.commit();
+        if (in >= 0 && in != intensity)
+            device.grid.intensity(in);
+        intensity = in;
+        for (int s = 0; s < DeviceShadow.MAX_SENSORS; s++) {
+            if (((t ^ tilt) & (1 << s)) != 0)
+                device.tilt.set(s, (t >> s) & 1);
+        }
+        tilt = t;
+        if (hasRings) {
+            RingFrameBuffer r = device.getRingBuffer();
+            for (int enc = 0; enc < encoders; enc++)
+                for (int led = 0; led < RingFrameBuffer.LEDS; led++)
+                    r.set(enc, led, rings[enc * RingFrameBuffer.LEDS + led]);
+            r.commit();
+        }
+        device.flush();
+    }
+
+    private static byte blend(int mode, byte below, byte level) {
+        switch (mode) {
+        case OR:
+            return below > level ? below : level;
+        case MASK:
+            return level != 0 ? below : 0;
+        default:
+            return level;
+        }
+    }
+
+    // events from the device
+
+    @Override
+    public void press(int x, int y, int state) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int i = y * width + x;
+        Layer target;
+        if (state != 0) {
+            target = null;
+            Layer[] ls = layers;
+            for (int k = ls.length - 1; k >= 0 && target == null; k--) {
+                Layer l = ls[k];
+                if (x >= l.x && y >= l.y && x < l.x + l.w && y < l.y + l.h)
+                    target = l;
+            }
+            owner[i] = target;
+        } else {
+            target = owner[i];
+            owner[i] = null;
+        }
+        if (target != null)
+            target.endpoint.key(x, y, state);
+    }
+
+    private Layer encoderOwner(int enc) {
+        Layer[] ls = layers;
+        for (int k = ls.length - 1; k >= 0; k--) {
+            if ((ls[k].encoderMask & (1 << enc)) != 0)
+                return ls[k];
+        }
+        return null;
+    }
+
+    @Override
+    public void delta(int enc, int delta) {
+        Layer l = encoderOwner(enc);
+        if (l != null)
+            l.endpoint.delta(enc, delta);
+    }
+
+    @Override
+    public void press(int enc, int state) {
+        Layer l = encoderOwner(enc);
+        if (l != null)
+            l.endpoint.encKey(enc, state);
+    }
+
+    @Override
+    public void tilt(int sensor, int x, int y, int z) {
+        for (Layer l : layers)
+            l.endpoint.tilt(sensor, x, y, z);
+    }
+
+    /**
+     * an app sharing the device
+     */
+    public static class Layer {
+        final SerialoscEmulator endpoint;
+        final int mode, x, y, w, h, encoderMask;
+
+        Layer(SerialoscEmulator endpoint, int mode, int x, int y, int w, int h, int encoderMask) {
+            this.endpoint = endpoint;
+            this.mode = mode;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.encoderMask = encoderMask;
+        }
+
+        /**
+         * @return the address the app connects to, as to a serialosc device
+         */
+        public InetSocketAddress getAddress() {
+            return endpoint.getAddress();
+        }
+
+        /**
+         * @return the prefix the app uses
+         */
+        public String getPrefix() {
+            return endpoint.getPrefix();
+        }
+
+        public int getMode() {
+            return mode;
+        }
+    }
+}
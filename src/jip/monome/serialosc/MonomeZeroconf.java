@@ -1,7 +1,16 @@
 package jip.monome.serialosc;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.logging.Logger;
 
 import javax.jmdns.JmDNS;
@@ -18,7 +27,9 @@ public class MonomeZeroconf {
     public final static String MONOME_TYPE = "_monome-osc._udp.local.";
 
     JmDNS jmdns;
-    HashMap<String, ServiceInfo> monomesMap = new HashMap<String, ServiceInfo>();
+    // written from jmdns threads
+    ConcurrentHashMap<String, ServiceInfo> monomesMap = new ConcurrentHashMap<String, ServiceInfo>();
+    CopyOnWriteArrayList<DiscoveryListener> listeners = new CopyOnWriteArrayList<DiscoveryListener>();
 
     public MonomeZeroconf() throws IOException {
         jmdns = JmDNS.create();
@@ -80,6 +91,122 @@ public class MonomeZeroconf {
         return connect(name, prefix, MonomeDevice.DEFAULT_HOST, portNumber);
     }
 
+    /**
+     * connects to a serialosc device server at a known address, without
+     * waiting for bonjour
+     * 
+     * @param serialoscHost
+     * @param serialoscPort
+     *            the port of the device, as announced by serialosc
+     * @param prefix
+     * @param host
+     * @param portNumber
+     * @return the object proxying the real device
+     * @throws IOException
+     */
+    public static MonomeDevice connectDirect(InetAddress serialoscHost, int serialoscPort, String prefix,
+            String host, int portNumber) throws IOException {
+        return new MonomeDevice(new InetSocketAddress(serialoscHost, serialoscPort), prefix, host, portNumber);
+    }
+
+    /**
+     * hooks a listener of monome services. Services already resolved are
+     * notified right away.
+     * 
+     * @param l
+     */
+    public void addDiscoveryListener(DiscoveryListener l) {
+        listeners.add(l);
+        for (ServiceInfo info : monomesMap.values())
+            l.resolved(info);
+    }
+
+    public void removeDiscoveryListener(DiscoveryListener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * waits asynchronously for a monome service
+     * 
+     * @param filter
+     * @return a future completed with the first service accepted by filter
+     */
+    public CompletableFuture<ServiceInfo> find(final Predicate<ServiceInfo> filter) {
+        final CompletableFuture<ServiceInfo> found = new CompletableFuture<ServiceInfo>();
+        final DiscoveryListener l = new DiscoveryListener() {
+            @Override
+            public void resolved(ServiceInfo info) {
+                if (!found.isDone() && filter.test(info))
+                    found.complete(info);
+            }
+
+            @Override
+            public void removed(ServiceInfo info) {
+            }
+        };
+        found.whenComplete(new BiConsumer<ServiceInfo, Throwable>() {
+            @Override
+            public void accept(ServiceInfo info, Throwable t) {
+                removeDiscoveryListener(l);
+            }
+        });
+        addDiscoveryListener(l);
+        return found;
+    }
+
+    /**
+     * connects to a device where it was last found, without waiting for
+     * bonjour, and takes its last known id and size so the app can draw
+     * right away. The device records its details in the cache once ready.
+     * 
+     * The cached address may be stale: confirm it in the background with a
+     * {@link ConnectionSupervisor}, which points the device to its new
+     * address when bonjour resolves it.
+     * 
+     * @param cache
+     * @param name
+     *            the service name, or null for the device ready last
+     * @param prefix
+     * @param host
+     * @param portNumber
+     * @return the object proxying the real device, or null if the device is
+     *         not in the cache
+     * @throws IOException
+     */
+    public static MonomeDevice connectCached(DeviceInfoCache cache, String name, String prefix, String host,
+            int portNumber) throws IOException {
+        DeviceInfoCache.Entry e = name != null ? cache.get(name) : cache.getLatest();
+        if (e == null)
+            return null;
+        MonomeDevice d = new MonomeDevice(e.getName(), e.getAddress(), prefix, host, portNumber, null);
+        d.preset(e.getId(), e.getSizeX(), e.getSizeY());
+        d.setInfoCache(cache);
+        return d;
+    }
+
+    /**
+     * connects asynchronously to the first monome accepted by filter
+     * 
+     * @param filter
+     * @param prefix
+     * @param host
+     * @param portNumber
+     * @return a future completed with the connected device
+     */
+    public CompletableFuture<MonomeDevice> connectFirst(Predicate<ServiceInfo> filter, final String prefix,
+            final String host, final int portNumber) {
+        return find(filter).thenApply(new Function<ServiceInfo, MonomeDevice>() {
+            @Override
+            public MonomeDevice apply(ServiceInfo info) {
+                try {
+                    return new MonomeDevice(info, prefix, host, portNumber);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
 
     @Override
     protected void finalize() throws Throwable {
@@ -103,16 +230,21 @@ public class MonomeZeroconf {
         public void serviceRemoved(ServiceEvent event) {
             String name = event.getName();
 
-            if (monomesMap.containsKey(name))
-                monomesMap.remove(name);
+            ServiceInfo info = monomesMap.remove(name);
+            if (info != null)
+                for (DiscoveryListener l : listeners)
+                    l.removed(info);
 
             logger.info("Service removed : " + name + "." + event.getType());
         }
 
         @Override
         public void serviceResolved(ServiceEvent event) {
-            monomesMap.put(event.getName(), event.getInfo());
-            logger.info("Monome resolved: " + event.getInfo());
+            ServiceInfo info = event.getInfo();
+            monomesMap.put(event.getName(), info);
+            logger.info("Monome resolved: " + info);
+            for (DiscoveryListener l : listeners)
+                l.resolved(info);
         }
 
     }
@@ -120,20 +252,21 @@ public class MonomeZeroconf {
     public static void main(String[] args) throws IOException,
             InterruptedException {
         MonomeZeroconf s = new MonomeZeroconf();
-        String[] monomes;
-
-        // wait for devices available
-        do {
-            Thread.sleep(20);
-            monomes = s.getDevices();
-        } while (monomes.length == 0);
-
-        for (String name : monomes) {
-            System.out.println("Monome found: " + name);
-        }
 
         // connect to the first found device
-        final MonomeDevice m = s.connect(monomes[0], "/myapp", "localhost", 8000);
+        final MonomeDevice m;
+        try {
+            m = s.connectFirst(new Predicate<ServiceInfo>() {
+                @Override
+                public boolean test(ServiceInfo info) {
+                    return true;
+                }
+            }, "/myapp", "localhost", 8000).get();
+        } catch (ExecutionException e) {
+            logger.severe("Couldn't connect: " + e.getCause().getMessage());
+            return;
+        }
+        System.out.println("Monome found: " + m.getId());
         // listen for grid events
         m.addListener(new GridListener() {
             int tilt = 0;
@@ -0,0 +1,86 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Packs encoded messages into OSC bundles (immediate time tag), sending a
+ * bundle every time the next message wouldn't fit in the mtu.
+ *
+ * A bundle holding a single message is sent as a plain message.
+ *
+ * @author jip
+ *
+ */
+class OscBundler {
+    static final int DEFAULT_MTU = 1472;
+
+    private static final byte[] BUNDLE = OscEncoder.address("#bundle");
+    private static final long IMMEDIATE = 1L;
+    private static final int HEADER = 16;
+
+    private final ByteBuffer buf;
+    private int mtu;
+
+    // messages in the bundle being filled
+    private int messages;
+
+    // since last reset
+    int total, datagrams;
+
+    OscBundler(int mtu) {
+        this.buf = ByteBuffer.allocate(Math.max(mtu, HEADER + 4 + OscEncoder.MAX_PACKET));
+        setMtu(mtu);
+    }
+
+    void setMtu(int mtu) {
+        if (mtu < HEADER + 4 || mtu > buf.capacity())
+            throw new IllegalArgumentException("invalid mtu: " + mtu);
+        this.mtu = mtu;
+    }
+
+    /**
+     * appends a message, sending the current bundle first if the message
+     * doesn't fit
+     *
+     * @param msg
+     *            the encoded message, from position to limit; left untouched
+     * @throws IOException
+     */
+    void add(ByteBuffer msg, DatagramChannel channel, SocketAddress target) throws IOException {
+        int len = msg.remaining();
+        if (messages > 0 && buf.position() + 4 + len > mtu)
+            send(channel, target);
+        if (messages == 0) {
+            buf.clear();
+            buf.put(BUNDLE).putLong(IMMEDIATE);
+        }
+        int p = msg.position();
+        buf.putInt(len).put(msg);
+        msg.position(p);
+        messages++;
+        total++;
+    }
+
+    /**
+     * sends the current bundle, if any
+     *
+     * @throws IOException
+     */
+    void send(DatagramChannel channel, SocketAddress target) throws IOException {
+        if (messages == 0)
+            return;
+        buf.flip();
+        if (messages == 1)
+            buf.position(HEADER + 4);
+        messages = 0;
+        datagrams++;
+        channel.send(buf, target);
+    }
+
+    void reset() {
+        total = datagrams = 0;
+    }
+}
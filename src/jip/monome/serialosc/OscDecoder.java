@@ -0,0 +1,188 @@
+package jip.monome.serialosc;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads OSC messages in place from a received datagram.
+ *
+ * Addresses are matched against pre-encoded ones (see
+ * {@link OscEncoder#address(String)}) and int arguments are read as
+ * primitives, so decoding a message doesn't allocate anything. Bundles are
+ * walked element by element.
+ *
+ * @author jip
+ *
+ */
+class OscDecoder {
+    static final byte[] BUNDLE = OscEncoder.address("#bundle");
+
+    /**
+     * receives the messages of a packet
+     */
+    interface Handler {
+        void accept(OscDecoder msg);
+    }
+
+    private ByteBuffer buf;
+    private int addrStart, addrEnd, tagsStart, argc, size;
+    private final int[] offsets = new int[OscEncoder.MAX_ARGS];
+
+    // System.nanoTime() when the packet was received
+    long received;
+
+    // where the packet comes from
+    InetSocketAddress source;
+
+    /**
+     * decodes every message in a packet
+     *
+     * @param packet
+     *            from position to limit, left untouched
+     * @param handler
+     */
+    void decode(ByteBuffer packet, Handler handler) {
+        decode(packet, packet.position(), packet.limit(), handler);
+    }
+
+    private void decode(ByteBuffer packet, int start, int end, Handler handler) {
+        if (isBundle(packet, start, end)) {
+            // skip the time tag
+            int p = start + BUNDLE.length + 8;
+            while (p + 4 <= end) {
+                int size = packet.getInt(p);
+                p += 4;
+                if (size <= 0 || p + size > end)
+                    return;
+                decode(packet, p, p + size, handler);
+                p += size;
+            }
+        } else if (parse(packet, start, end)) {
+            handler.accept(this);
+        }
+    }
+
+    private static boolean isBundle(ByteBuffer packet, int start, int end) {
+        if (end - start < BUNDLE.length + 8)
+            return false;
+        for (int i = 0; i < BUNDLE.length; i++)
+            if (packet.get(start + i) != BUNDLE[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return false if the message is malformed or has unsupported arguments
+     */
+    boolean parse(ByteBuffer packet, int start, int end) {
+        this.buf = packet;
+        this.addrStart = start;
+        this.size = end - start;
+        int p = skipString(start, end);
+        if (p < 0)
+            return false;
+        addrEnd = p;
+        argc = 0;
+        if (p == end)
+            return true;
+        if (packet.get(p) != ',')
+            return false;
+        tagsStart = p + 1;
+        int args = skipString(p, end);
+        if (args < 0)
+            return false;
+        for (int t = tagsStart; packet.get(t) != 0; t++) {
+            if (argc == offsets.length)
+                return false;
+            offsets[argc++] = args;
+            switch (packet.get(t)) {
+            case 'i':
+            case 'f':
+                args += 4;
+                break;
+            case 's':
+                args = skipString(args, end);
+                if (args < 0)
+                    return false;
+                break;
+            default:
+                return false;
+            }
+            if (args > end)
+                return false;
+        }
+        return true;
+    }
+
+    // end of a padded OSC string, -1 if it isn't terminated
+    private int skipString(int p, int end) {
+        for (int i = p; i < end; i++) {
+            if (buf.get(i) == 0) {
+                int next = p + ((i - p + 4) & ~3);
+                return next <= end ? next : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param address
+     *            a pre-encoded address
+     * @return true if the message is sent to address
+     */
+    boolean is(byte[] address) {
+        if (addrEnd - addrStart != address.length)
+            return false;
+        for (int i = address.length - 1; i >= 0; i--)
+            if (buf.get(addrStart + i) != address[i])
+                return false;
+        return true;
+    }
+
+    String getAddress() {
+        StringBuilder s = new StringBuilder();
+        for (int i = addrStart; i < addrEnd && buf.get(i) != 0; i++)
+            s.append((char) buf.get(i));
+        return s.toString();
+    }
+
+    /**
+     * @return encoded size of the message, in bytes
+     */
+    int getSize() {
+        return size;
+    }
+
+    int getArgCount() {
+        return argc;
+    }
+
+    char getType(int i) {
+        return (char) buf.get(tagsStart + i);
+    }
+
+    /**
+     * @return the int argument i; floats are truncated, strings are 0
+     */
+    int getInt(int i) {
+        if (i >= argc)
+            return 0;
+        switch (getType(i)) {
+        case 'i':
+            return buf.getInt(offsets[i]);
+        case 'f':
+            return (int) Float.intBitsToFloat(buf.getInt(offsets[i]));
+        default:
+            return 0;
+        }
+    }
+
+    String getString(int i) {
+        if (i >= argc || getType(i) != 's')
+            return null;
+        StringBuilder s = new StringBuilder();
+        for (int p = offsets[i]; buf.get(p) != 0; p++)
+            s.append((char) buf.get(p));
+        return s.toString();
+    }
+}
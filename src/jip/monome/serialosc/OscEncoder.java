@@ -0,0 +1,374 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes OSC messages straight into a reusable buffer and sends them out
+ * through a datagram channel.
+ *
+ * Addresses and type tags are encoded once (see {@link #address(String)})
+ * so sending a message with int arguments doesn't allocate anything.
+ *
+ * @author jip
+ *
+ */
+class OscEncoder {
+    static final int MAX_ARGS = 72;
+    static final int MAX_PACKET = 1024;
+
+    // ",iii..." type tags, indexed by number of int arguments
+    private static final byte[][] INT_TAGS = new byte[MAX_ARGS + 1][];
+    static {
+        for (int n = 0; n <= MAX_ARGS; n++) {
+            StringBuilder tags = new StringBuilder(",");
+            for (int i = 0; i < n; i++)
+                tags.append('i');
+            INT_TAGS[n] = address(tags.toString());
+        }
+    }
+    private static final byte[] STRING_TAG = address(",s");
+
+    final ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET);
+    DatagramChannel channel;
+    volatile SocketAddress target;
+
+    // queues the messages instead of sending them, when set
+    volatile OutputScheduler scheduler;
+
+    // packs the messages into bundles between beginBatch and flushBatch
+    final OscBundler batch = new OscBundler(OscBundler.DEFAULT_MTU);
+    // packs the messages sent apart from the batch, see sendApart
+    private final OscBundler apart = new OscBundler(OscBundler.DEFAULT_MTU);
+    // where messages go while batching
+    private OscBundler bundler = batch;
+    private boolean batching;
+    volatile int mtu = OscBundler.DEFAULT_MTU;
+    final FlushStats flushStats = new FlushStats();
+
+    // address -> number of leading args identifying the target of a message
+    private final IdentityHashMap<byte[], Integer> keys = new IdentityHashMap<byte[], Integer>();
+
+    // address -> family counted in the metrics, sys if not declared
+    private final IdentityHashMap<byte[], Integer> families = new IdentityHashMap<byte[], Integer>();
+    volatile DeviceMetrics metrics;
+
+    // gets every message sent, when set
+    volatile EventRecorder recorder;
+
+    // message being encoded
+    private byte[] address;
+    private int argc;
+
+    OscEncoder(DatagramChannel channel, SocketAddress target) {
+        this.channel = channel;
+        this.target = target;
+    }
+
+    /**
+     * encodes a string as an OSC string: ascii chars, null terminated and
+     * padded to a 4 bytes boundary
+     *
+     * @param s
+     * @return the encoded bytes
+     */
+    static byte[] address(String s) {
+        byte[] out = new byte[(s.length() + 4) & ~3];
+        for (int i = 0; i < s.length(); i++)
+            out[i] = (byte) s.charAt(i);
+        return out;
+    }
+
+    /**
+     * type tags for a message with n int arguments
+     *
+     * @param n
+     * @return the encoded tags
+     */
+    static byte[] intTags(int n) {
+        return INT_TAGS[n];
+    }
+
+    /**
+     * checks that a message with argc int arguments can be encoded, before
+     * anything is drawn or sent
+     *
+     * @param address
+     * @param argc
+     * @throws IllegalArgumentException
+     *             if there are more than {@link #MAX_ARGS} arguments or the
+     *             message doesn't fit in a packet
+     */
+    static void checkArgs(byte[] address, int argc) {
+        if (argc > MAX_ARGS)
+            throw new IllegalArgumentException("too many arguments: " + argc + ", at most " + MAX_ARGS);
+        int size = address.length + INT_TAGS[argc].length + 4 * argc;
+        if (size > MAX_PACKET)
+            throw new IllegalArgumentException("message too long: " + size + " bytes, at most " + MAX_PACKET);
+    }
+
+    /**
+     * declares messages to an address as coalescable by the scheduler: a
+     * message replaces a queued one if their first keyArgs arguments match.
+     *
+     * @param address
+     * @param keyArgs
+     */
+    synchronized void coalesce(byte[] address, int keyArgs) {
+        keys.put(address, keyArgs);
+    }
+
+    /**
+     * declares the family messages to an address are counted in, see
+     * {@link DeviceMetrics}
+     *
+     * @param address
+     * @param family
+     */
+    synchronized void family(byte[] address, int family) {
+        families.put(address, family);
+    }
+
+    synchronized void beginBatch() {
+        if (batching)
+            return;
+        batching = true;
+        batch.reset();
+    }
+
+    /**
+     * sends the messages encoded since beginBatch and stops batching
+     */
+    synchronized void flushBatch() {
+        if (!batching)
+            return;
+        batching = false;
+        try {
+            batch.send(channel, target);
+        } catch (IOException e) {
+            DeviceMetrics m = metrics;
+            if (m != null)
+                m.sendError();
+        }
+        flushStats.record(batch.total, batch.datagrams);
+    }
+
+    /**
+     * runs r holding the encoder, packing the messages it sends into bundles
+     * of their own, sent when it returns. A batch open meanwhile is left as
+     * it is, for its own flush.
+     */
+    synchronized void sendApart(Runnable r) {
+        boolean wasBatching = batching;
+        bundler = apart;
+        batching = true;
+        apart.reset();
+        try {
+            r.run();
+        } finally {
+            bundler = batch;
+            batching = wasBatching;
+            try {
+                apart.send(channel, target);
+            } catch (IOException e) {
+                DeviceMetrics m = metrics;
+                if (m != null)
+                    m.sendError();
+            }
+            if (apart.total > 0)
+                flushStats.record(apart.total, apart.datagrams);
+        }
+    }
+
+    synchronized void setMtu(int mtu) {
+        batch.setMtu(mtu);
+        apart.setMtu(mtu);
+        this.mtu = mtu;
+    }
+
+    // message senders
+
+    synchronized void send(byte[] address) {
+        begin(address, 0);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a) {
+        begin(address, 1);
+        buf.putInt(a);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, int b) {
+        begin(address, 2);
+        buf.putInt(a).putInt(b);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, int b, int c) {
+        begin(address, 3);
+        buf.putInt(a).putInt(b).putInt(c);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, int b, int c, int d) {
+        begin(address, 4);
+        buf.putInt(a).putInt(b).putInt(c).putInt(d);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, byte[] values) {
+        begin(address, 1 + values.length);
+        buf.putInt(a);
+        for (byte v : values)
+            buf.putInt(v & 0xff);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, int b, byte[] values) {
+        begin(address, 2 + values.length);
+        buf.putInt(a).putInt(b);
+        for (byte v : values)
+            buf.putInt(v & 0xff);
+        flush();
+    }
+
+    /**
+     * sends len values starting at off, taken every stride bytes
+     */
+    synchronized void send(byte[] address, int a, int b, byte[] values, int off, int len, int stride) {
+        begin(address, 2 + len);
+        buf.putInt(a).putInt(b);
+        for (int i = 0; i < len; i++)
+            buf.putInt(values[off + i * stride] & 0xff);
+        flush();
+    }
+
+    synchronized void send(byte[] address, int a, int b, int[] values) {
+        begin(address, 2 + values.length);
+        buf.putInt(a).putInt(b);
+        for (int v : values)
+            buf.putInt(v);
+        flush();
+    }
+
+    /**
+     * sends a 8x8 quad packed as a long, one byte per row
+     */
+    synchronized void send(byte[] address, int a, int b, long quad) {
+        begin(address, 10);
+        buf.putInt(a).putInt(b);
+        for (int r = 0; r < 64; r += 8)
+            buf.putInt((int) (quad >>> r) & 0xff);
+        flush();
+    }
+
+    synchronized void send(byte[] address, String s) {
+        buf.clear();
+        buf.put(address);
+        buf.put(STRING_TAG);
+        buf.put(address(s));
+        this.address = address;
+        this.argc = -1;
+        flush();
+    }
+
+    /**
+     * sends a compiled pattern: its datagrams as they are, or its messages
+     * one by one when batching or scheduling
+     *
+     * @param blit
+     */
+    synchronized void send(PatternCache.Blit blit) {
+        Integer f = families.get(blit.address);
+        int family = f != null ? f.intValue() : DeviceMetrics.SYS;
+        EventRecorder r = recorder;
+        if (r != null) {
+            for (ByteBuffer msg : blit.messages)
+                record(r, blit.address, blit.argc, msg);
+        }
+        OutputScheduler s = scheduler;
+        if (s != null) {
+            Integer k = keys.get(blit.address);
+            for (int i = 0; i < blit.messages.length; i++)
+                s.offer(blit.address, k != null ? k.intValue() : -1, blit.argc, blit.a[i], blit.b[i], family,
+                        blit.messages[i]);
+            return;
+        }
+        DeviceMetrics m = metrics;
+        try {
+            if (batching) {
+                for (ByteBuffer msg : blit.messages)
+                    bundler.add(msg, channel, target);
+            } else {
+                for (ByteBuffer d : blit.datagrams) {
+                    try {
+                        channel.send(d, target);
+                    } finally {
+                        d.position(0);
+                    }
+                }
+            }
+            if (m != null) {
+                for (ByteBuffer msg : blit.messages)
+                    m.sent(family, msg.remaining());
+            }
+        } catch (IOException e) {
+            if (m != null)
+                m.sendError();
+        }
+    }
+
+    // records the address and first args of an encoded message
+    private static void record(EventRecorder r, byte[] address, int argc, ByteBuffer msg) {
+        int p = msg.position() + address.length + (argc >= 0 ? INT_TAGS[argc].length : 0);
+        r.command(address, argc, argc > 0 ? msg.getInt(p) : 0, argc > 1 ? msg.getInt(p + 4) : 0,
+                argc > 2 ? msg.getInt(p + 8) : 0, argc > 3 ? msg.getInt(p + 12) : 0);
+    }
+
+    private void begin(byte[] address, int argc) {
+        this.address = address;
+        this.argc = argc;
+        buf.clear();
+        buf.put(address);
+        buf.put(INT_TAGS[argc]);
+    }
+
+    private void flush() {
+        buf.flip();
+        EventRecorder r = recorder;
+        if (r != null)
+            record(r, address, argc, buf);
+        Integer f = families.get(address);
+        int family = f != null ? f.intValue() : DeviceMetrics.SYS;
+        OutputScheduler s = scheduler;
+        if (s != null) {
+            Integer k = keys.get(address);
+            int start = address.length + (argc > 0 ? INT_TAGS[argc].length : 0);
+            s.offer(address, k != null ? k.intValue() : -1, argc,
+                    argc > 0 ? buf.getInt(start) : 0,
+                    argc > 1 ? buf.getInt(start + 4) : 0, family, buf);
+            return;
+        }
+        DeviceMetrics m = metrics;
+        int len = buf.remaining();
+        try {
+            if (batching)
+                bundler.add(buf, channel, target);
+            else
+                channel.send(buf, target);
+            if (m != null)
+                m.sent(family, len);
+        } catch (IOException e) {
+            if (m != null)
+                m.sendError();
+        }
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,64 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Receive thread: reads datagrams into a reused buffer and hands their
+ * messages to a handler, decoded in place.
+ *
+ * @author jip
+ *
+ */
+class OscReceiver implements Runnable {
+    static final Logger logger = Logger.getLogger(OscReceiver.class.getName());
+
+    // largest datagram serialosc could send us
+    static final int MAX_DATAGRAM = 65536;
+
+    private final DatagramChannel channel;
+    private final OscDecoder.Handler handler;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+    private final OscDecoder decoder = new OscDecoder();
+    private Thread thread;
+
+    OscReceiver(DatagramChannel channel, OscDecoder.Handler handler) {
+        this.channel = channel;
+        this.handler = handler;
+    }
+
+    void startListening(String name) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (channel.isOpen()) {
+            buf.clear();
+            try {
+                decoder.source = (InetSocketAddress) channel.receive(buf);
+                if (decoder.source == null)
+                    continue;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.log(Level.FINE, "receive failed", e);
+                continue;
+            }
+            decoder.received = System.nanoTime();
+            buf.flip();
+            try {
+                decoder.decode(buf, handler);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "message handler failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rate limited output for a device.
+ *
+ * While a scheduler is running, commands don't hit the socket: they are
+ * queued and flushed by the scheduler thread once per tick, packed in as few
+ * OSC bundles as fit in the mtu. A command
+ * replaces any queued command for the same target (same address and same
+ * leading arguments, e.g. the same led for /grid/led/set or the same row for
+ * /grid/led/row), so only the latest state of every target is sent.
+ *
+ * The queue is bounded and preallocated; when it is full new commands are
+ * dropped and counted.
+ *
+ * @author jip
+ *
+ */
+public class OutputScheduler implements Runnable {
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final OscEncoder out;
+    private final long period;
+    private final int capacity;
+
+    // filled by callers / sent by the scheduler thread
+    private Frame pending, sending;
+
+    // used by the scheduler thread only
+    private final OscBundler bundler = new OscBundler(OscBundler.DEFAULT_MTU);
+
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile long sent, coalesced, dropped, errors;
+
+    OutputScheduler(OscEncoder out, int rate, int capacity) {
+        if (rate <= 0)
+            throw new IllegalArgumentException("rate must be positive: " + rate);
+        this.out = out;
+        this.period = 1000000000L / rate;
+        this.capacity = capacity;
+        this.pending = new Frame(capacity);
+        this.sending = new Frame(capacity);
+    }
+
+    synchronized void start() {
+        running = true;
+        thread = new Thread(this, "serialosc-out");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stops the scheduler thread, sending whatever is queued
+     */
+    void stop() {
+        running = false;
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        tick();
+    }
+
+    /**
+     * queues an encoded message, replacing the queued one for the same target
+     *
+     * @param address
+     * @param keyArgs
+     *            leading int arguments identifying the target, -1 if the
+     *            message can't be coalesced
+     * @param argc
+     * @param a
+     *            first argument
+     * @param b
+     *            second argument
+     * @param family
+     *            counted in the metrics once sent
+     * @param msg
+     *            the encoded message, from position to limit
+     */
+    synchronized void offer(byte[] address, int keyArgs, int argc, int a, int b, int family, ByteBuffer msg) {
+        int r = pending.put(address, keyArgs, argc, keyArgs > 0 ? a : 0, keyArgs > 1 ? b : 0, family, msg);
+        if (r > 0)
+            coalesced++;
+        else if (r < 0)
+            dropped++;
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime() + period;
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            tick();
+            next += period;
+            // don't try to catch up after a long stall
+            if (next < System.nanoTime())
+                next = System.nanoTime() + period;
+        }
+    }
+
+    /**
+     * sends everything queued since the previous tick
+     */
+    void tick() {
+        Frame f;
+        synchronized (this) {
+            if (pending.count == 0)
+                return;
+            f = pending;
+            pending = sending;
+            sending = f;
+        }
+        // callers only wait for the swap above, never for the socket
+        bundler.reset();
+        bundler.setMtu(out.mtu);
+        DeviceMetrics m = out.metrics;
+        for (int s = f.head; s >= 0; s = f.next[s]) {
+            ByteBuffer msg = f.data[s];
+            msg.flip();
+            try {
+                bundler.add(msg, out.channel, out.target);
+                sent++;
+                if (m != null)
+                    m.sent(f.family[s], msg.remaining());
+            } catch (IOException e) {
+                errors++;
+                if (m != null)
+                    m.sendError();
+            }
+        }
+        try {
+            bundler.send(out.channel, out.target);
+        } catch (IOException e) {
+            errors++;
+            if (m != null)
+                m.sendError();
+        }
+        out.flushStats.record(bundler.total, bundler.datagrams);
+        f.clear();
+    }
+
+    public int getRate() {
+        return (int) (1000000000L / period);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return number of commands waiting for next tick
+     */
+    public synchronized int getQueued() {
+        return pending.count;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    /**
+     * @return number of commands replaced by a newer one before being sent
+     */
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    /**
+     * @return number of commands dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * a bounded set of queued messages, kept in sending order and indexed by
+     * target
+     */
+    static class Frame {
+        final ByteBuffer[] data;
+        final byte[][] keyAddress;
+        final int[] keyArgs, keyArgc, keyA, keyB, family;
+        final int[] prev, next;
+        final int[] table;
+        int head = -1, tail = -1, count;
+
+        Frame(int capacity) {
+            data = new ByteBuffer[capacity];
+            for (int i = 0; i < capacity; i++)
+                data[i] = ByteBuffer.allocate(OscEncoder.MAX_PACKET);
+            keyAddress = new byte[capacity][];
+            keyArgs = new int[capacity];
+            keyArgc = new int[capacity];
+            keyA = new int[capacity];
+            keyB = new int[capacity];
+            family = new int[capacity];
+            prev = new int[capacity];
+            next = new int[capacity];
+            table = new int[Integer.highestOneBit(capacity) << 2];
+            Arrays.fill(table, -1);
+        }
+
+        /**
+         * @return 1 if a queued message was replaced, 0 if added, -1 if full
+         */
+        int put(byte[] address, int args, int argc, int a, int b, int family, ByteBuffer msg) {
+            int mask = table.length - 1;
+            int h = 0;
+            if (args >= 0) {
+                h = System.identityHashCode(address) * 31 + argc;
+                h = (h * 31 + a) * 31 + b;
+                h ^= h >>> 16;
+                for (int i = h & mask;; i = (i + 1) & mask) {
+                    int s = table[i];
+                    if (s < 0) {
+                        h = i;
+                        break;
+                    }
+                    if (keyAddress[s] == address && keyArgs[s] == args && keyArgc[s] == argc
+                            && keyA[s] == a && keyB[s] == b) {
+                        // same target: replace and move to the end
+                        copy(s, msg);
+                        unlink(s);
+                        link(s);
+                        return 1;
+                    }
+                }
+            }
+            if (count == data.length)
+                return -1;
+            int s = count++;
+            keyAddress[s] = address;
+            keyArgs[s] = args;
+            keyArgc[s] = argc;
+            keyA[s] = a;
+            keyB[s] = b;
+            this.family[s] = family;
+            if (args >= 0)
+                table[h] = s;
+            copy(s, msg);
+            link(s);
+            return 0;
+        }
+
+        private void copy(int s, ByteBuffer msg) {
+            ByteBuffer d = data[s];
+            int p = msg.position();
+            d.clear();
+            d.put(msg);
+            msg.position(p);
+        }
+
+        private void link(int s) {
+            prev[s] = tail;
+            next[s] = -1;
+            if (tail >= 0)
+                next[tail] = s;
+            else
+                head = s;
+            tail = s;
+        }
+
+        private void unlink(int s) {
+            if (prev[s] >= 0)
+                next[prev[s]] = next[s];
+            else
+                head = next[s];
+            if (next[s] >= 0)
+                prev[next[s]] = prev[s];
+            else
+                tail = prev[s];
+        }
+
+        void clear() {
+            if (count == 0)
+                return;
+            Arrays.fill(table, -1);
+            Arrays.fill(keyAddress, 0, count, null);
+            head = tail = -1;
+            count = 0;
+        }
+    }
+}
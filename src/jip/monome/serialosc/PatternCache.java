@@ -0,0 +1,219 @@
+package jip.monome.serialosc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Least recently used cache of patterns compiled to OSC.
+ *
+ * The first time a pattern is drawn at an offset, its quads are encoded as
+ * /grid/led/map (bitmaps) or /grid/led/level/map (levels) messages and
+ * packed into as few bundles as the mtu allows. Drawing it again sends
+ * those datagrams as they are, usually a single write. Entries are keyed by
+ * pattern and offset: the prefix compiled in is the device's own, which
+ * doesn't change (when another app takes the device, its prefix is set back
+ * on refocus and the compiled patterns are still right).
+ *
+ * @author jip
+ *
+ */
+public class PatternCache {
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private static final byte[] BUNDLE = OscEncoder.address("#bundle");
+    private static final long IMMEDIATE = 1L;
+
+    private final MonomeDevice device;
+    private final int capacity;
+    private final LinkedHashMap<Key, Blit> entries;
+    private final Key probe = new Key();
+    private long hits, misses, evictions;
+
+    PatternCache(MonomeDevice device, int capacity) {
+        this.device = device;
+        this.capacity = capacity;
+        entries = new LinkedHashMap<Key, Blit>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Blit> eldest) {
+                if (size() <= PatternCache.this.capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * draws a pattern
+     *
+     * @param pattern
+     * @param xoff
+     *            multiple of 8
+     * @param yoff
+     *            multiple of 8
+     */
+    public void blit(GridPattern pattern, int xoff, int yoff) {
+        if ((xoff & 7) != 0 || (yoff & 7) != 0)
+            throw new IllegalArgumentException("offsets must be multiples of 8: " + xoff + ", " + yoff);
+        Blit b = get(pattern, xoff, yoff);
+        for (int i = 0; i < b.a.length; i++) {
+            if (pattern.isBitmap())
+                device.shadow.map(b.a[i], b.b[i], b.quads[i]);
+            else
+                device.shadow.levelMap(b.a[i], b.b[i], b.levels, i << 6, 64);
+        }
+        device.keys.echo(xoff, yoff, (pattern.getWidth() + 7) & ~7, (pattern.getHeight() + 7) & ~7);
+        device.out.send(b);
+    }
+
+    private synchronized Blit get(GridPattern pattern, int xoff, int yoff) {
+        int mtu = device.out.mtu;
+        probe.set(pattern, xoff, yoff);
+        Blit b = entries.get(probe);
+        if (b != null && b.mtu == mtu) {
+            hits++;
+            return b;
+        }
+        misses++;
+        b = compile(pattern, xoff, yoff, mtu);
+        Key k = new Key();
+        k.set(pattern, xoff, yoff);
+        entries.put(k, b);
+        return b;
+    }
+
+    private Blit compile(GridPattern pattern, int xoff, int yoff, int mtu) {
+        int qw = (pattern.getWidth() + 7) >> 3, qh = (pattern.getHeight() + 7) >> 3, n = qw * qh;
+        boolean bits = pattern.isBitmap();
+        Blit b = new Blit(n, mtu);
+        b.address = bits ? device.grid.addrMap : device.grid.addrLevelMap;
+        b.argc = bits ? 10 : 66;
+        byte[] tags = OscEncoder.intTags(b.argc);
+        if (bits)
+            b.quads = new long[n];
+        else
+            b.levels = new byte[n << 6];
+        for (int i = 0; i < n; i++) {
+            int qx = i % qw, qy = i / qw;
+            b.a[i] = xoff + (qx << 3);
+            b.b[i] = yoff + (qy << 3);
+            ByteBuffer msg = ByteBuffer.allocate(b.address.length + tags.length + 4 * b.argc);
+            msg.put(b.address).put(tags).putInt(b.a[i]).putInt(b.b[i]);
+            if (bits) {
+                b.quads[i] = pattern.quad(qx, qy);
+                for (int r = 0; r < 8; r++)
+                    msg.putInt((int) (b.quads[i] >>> (r << 3)) & 0xff);
+            } else {
+                pattern.levelQuad(qx, qy, b.levels, i << 6);
+                for (int l = 0; l < 64; l++)
+                    msg.putInt(b.levels[(i << 6) + l]);
+            }
+            msg.flip();
+            b.messages[i] = msg;
+        }
+        b.datagrams = pack(b.messages, mtu);
+        return b;
+    }
+
+    // packs messages into bundles of at most mtu bytes, a bundle of one
+    // message being sent as a plain message
+    private static ByteBuffer[] pack(ByteBuffer[] messages, int mtu) {
+        List<ByteBuffer> datagrams = new ArrayList<ByteBuffer>();
+        ByteBuffer bundle = null;
+        int first = 0;
+        for (int i = 0; i <= messages.length; i++) {
+            if (bundle != null && (i == messages.length || bundle.position() + 4 + messages[i].remaining() > mtu)) {
+                bundle.flip();
+                datagrams.add(i - first == 1 ? messages[first] : bundle);
+                bundle = null;
+            }
+            if (i == messages.length)
+                break;
+            if (bundle == null) {
+                bundle = ByteBuffer.allocate(mtu);
+                bundle.put(BUNDLE).putLong(IMMEDIATE);
+                first = i;
+            }
+            bundle.putInt(messages[i].remaining()).put(messages[i].duplicate());
+        }
+        return datagrams.toArray(new ByteBuffer[datagrams.size()]);
+    }
+
+    /**
+     * drops every compiled pattern
+     */
+    public synchronized void invalidate() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    static class Key {
+        GridPattern pattern;
+        int xoff, yoff;
+
+        void set(GridPattern pattern, int xoff, int yoff) {
+            this.pattern = pattern;
+            this.xoff = xoff;
+            this.yoff = yoff;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(pattern) * 31 + xoff) * 31 + yoff;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key k = (Key) o;
+            return k.pattern == pattern && k.xoff == xoff && k.yoff == yoff;
+        }
+    }
+
+    /**
+     * a pattern compiled at an offset: one map message per quad, and the
+     * same messages packed in bundles
+     */
+    static class Blit {
+        final int mtu;
+        byte[] address;
+        int argc;
+        final int[] a, b;
+        final ByteBuffer[] messages;
+        ByteBuffer[] datagrams;
+        long[] quads;
+        byte[] levels;
+
+        Blit(int n, int mtu) {
+            this.mtu = mtu;
+            a = new int[n];
+            b = new int[n];
+            messages = new ByteBuffer[n];
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package jip.monome.serialosc;
+
+/**
+ * Stands for a listener run on an executor: events are queued for it, and
+ * delivered in order by its own {@link EventQueue}.
+ *
+ * {@link MonomeDevice} queues its events with {@link #event} and their
+ * receive time; the listener methods, stamping events with the current
+ * time, are for other callers.
+ *
+ * @author jip
+ *
+ */
+class QueuedListener implements GridListener, TiltListener, EncListener {
+    final EventQueue queue;
+
+    QueuedListener(EventQueue queue) {
+        this.queue = queue;
+    }
+
+    void event(int type, int a, int b, int c, int d, long received) {
+        queue.offer(type, a, b, c, d, received);
+    }
+
+    @Override
+    public void press(int x, int y, int state) {
+        queue.offer(MonomeDevice.EVENT_KEY, x, y, state, 0, System.nanoTime());
+    }
+
+    @Override
+    public void tilt(int sensor, int x, int y, int z) {
+        queue.offer(MonomeDevice.EVENT_TILT, sensor, x, y, z, System.nanoTime());
+    }
+
+    @Override
+    public void delta(int enc, int delta) {
+        queue.offer(MonomeDevice.EVENT_ENC_DELTA, enc, delta, 0, 0, System.nanoTime());
+    }
+
+    @Override
+    public void press(int enc, int state) {
+        queue.offer(MonomeDevice.EVENT_ENC_KEY, enc, state, 0, 0, System.nanoTime());
+    }
+}
@@ -1,8 +1,5 @@
 package jip.monome.serialosc;
 
-import java.io.IOException;
-import com.illposed.osc.OSCMessage;
-
 public class RingCommands {
     public static final String MSG_SET = "/ring/set";
     public static final String MSG_ALL = "/ring/all";
@@ -11,51 +8,43 @@ public class RingCommands {
 
     MonomeDevice ring;
 
+    // pre-encoded addresses
+    final byte[] addrSet, addrAll, addrMap, addrRange;
+
     public RingCommands(MonomeDevice grid) {
         this.ring = grid;
+        addrSet = OscEncoder.address(ring.prefix + MSG_SET);
+        addrAll = OscEncoder.address(ring.prefix + MSG_ALL);
+        addrMap = OscEncoder.address(ring.prefix + MSG_MAP);
+        addrRange = OscEncoder.address(ring.prefix + MSG_RANGE);
+
+        // targets, for the output scheduler (ranges may overlap, so they
+        // are never coalesced)
+        ring.out.coalesce(addrSet, 2);
+        ring.out.coalesce(addrAll, 1);
+        ring.out.coalesce(addrMap, 1);
+        for (byte[] a : new byte[][] { addrSet, addrAll, addrMap, addrRange })
+            ring.out.family(a, DeviceMetrics.RING);
     }
 
     public void set(int enc, int led, int level) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(ring.prefix + MSG_SET);
-        msg.addArgument(new Integer(enc));
-        msg.addArgument(new Integer(led));
-        msg.addArgument(new Integer(level));
-        send(msg);
+        ring.shadow.ring(enc, led, level);
+        ring.out.send(addrSet, enc, led, level);
     }
 
     public void all(int enc, int level) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(ring.prefix + MSG_ALL);
-        msg.addArgument(new Integer(enc));
-        msg.addArgument(new Integer(level));
-        send(msg);
+        ring.shadow.ringAll(enc, level);
+        ring.out.send(addrAll, enc, level);
     }
 
     public void map(int enc, byte[] levels) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(ring.prefix + MSG_MAP);
-        msg.addArgument(new Integer(enc));
-        for (int l : levels)
-            msg.addArgument(new Integer(l));
-        send(msg);
+        OscEncoder.checkArgs(addrMap, 1 + levels.length);
+        ring.shadow.ringMap(enc, levels);
+        ring.out.send(addrMap, enc, levels);
     }
 
     public void range(int enc, int x1, int x2, int level) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(ring.prefix + MSG_RANGE);
-        msg.addArgument(new Integer(enc));
-        msg.addArgument(new Integer(x1));
-        msg.addArgument(new Integer(x2));
-        msg.addArgument(new Integer(level));
-        send(msg);
-    }
-
-    private void send(OSCMessage msg) {
-        try {
-            ring.OSCout.send(msg);
-        } catch (IOException e) {
-            // Do nothing
-        }
+        ring.shadow.ringRange(enc, x1, x2, level);
+        ring.out.send(addrRange, enc, x1, x2, level);
     }
 }
@@ -0,0 +1,272 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Double buffered ring levels (0-15) for an arc.
+ *
+ * Apps draw into the back buffer and call {@link #commit()}; for every ring
+ * that changed since the last commit, the cheapest of /ring/all, a few
+ * /ring/range and /ring/set messages, or a single /ring/map is sent.
+ *
+ * Rings can also be tweened towards a target: {@link #tween(int, byte[], long)}
+ * only records the target, and {@link #animate()} (called by the app, or
+ * by the thread started with {@link #startAnimation(int)}) moves the levels
+ * and commits at a fixed rate, however fast the targets change.
+ *
+ * @author jip
+ *
+ */
+public class RingFrameBuffer implements Runnable {
+    public static final int DEFAULT_ENCODERS = 4;
+    public static final int LEDS = 64;
+    public static final int MAX_LEVEL = 15;
+
+    private final MonomeDevice device;
+    private final int encoders;
+    private final byte[] back, front;
+    private final boolean[] valid;
+    private final byte[] map = new byte[LEDS];
+
+    // tweens, per ring and led
+    private final float[] from, to;
+    private final long[] tweenStart, tweenLength;
+
+    // encoded message sizes, to pick the cheapest update
+    private final int costSet, costRange, costMap;
+
+    // the animation thread, which runs while it is the one set here
+    private volatile Thread thread;
+    private long period;
+
+    public RingFrameBuffer(MonomeDevice device, int encoders) {
+        this.device = device;
+        this.encoders = encoders;
+        back = new byte[encoders * LEDS];
+        front = new byte[encoders * LEDS];
+        valid = new boolean[encoders];
+        from = new float[encoders * LEDS];
+        to = new float[encoders * LEDS];
+        tweenStart = new long[encoders];
+        tweenLength = new long[encoders];
+        RingCommands ring = device.ring;
+        costSet = ring.addrSet.length + OscEncoder.intTags(3).length + 12;
+        costRange = ring.addrRange.length + OscEncoder.intTags(4).length + 16;
+        costMap = ring.addrMap.length + OscEncoder.intTags(1 + LEDS).length + 4 * (1 + LEDS);
+    }
+
+    public int getEncoders() {
+        return encoders;
+    }
+
+    private static byte clamp(int l) {
+        return (byte) (l < 0 ? 0 : l > MAX_LEVEL ? MAX_LEVEL : l);
+    }
+
+    // drawing, on the back buffer
+
+    public synchronized void set(int enc, int led, int level) {
+        if (enc < 0 || enc >= encoders)
+            return;
+        back[enc * LEDS + (led & (LEDS - 1))] = clamp(level);
+        tweenLength[enc] = 0;
+    }
+
+    public synchronized int get(int enc, int led) {
+        if (enc < 0 || enc >= encoders)
+            return 0;
+        return back[enc * LEDS + (led & (LEDS - 1))];
+    }
+
+    public synchronized void all(int enc, int level) {
+        range(enc, 0, LEDS - 1, level);
+    }
+
+    public synchronized void map(int enc, byte[] levels) {
+        for (int led = 0; led < levels.length && led < LEDS; led++)
+            set(enc, led, levels[led]);
+    }
+
+    /**
+     * sets leds x1 to x2, wrapping around the ring
+     */
+    public synchronized void range(int enc, int x1, int x2, int level) {
+        int n = ((x2 - x1) & (LEDS - 1)) + 1;
+        for (int i = 0; i < n; i++)
+            set(enc, x1 + i, level);
+    }
+
+    /**
+     * forces every ring to be sent on next commit
+     */
+    public synchronized void invalidate() {
+        for (int enc = 0; enc < encoders; enc++)
+            valid[enc] = false;
+    }
+
+    // tweening
+
+    /**
+     * moves a ring from its current levels to target in millis milliseconds;
+     * a new tween on the same ring starts from wherever the previous one was
+     *
+     * @param enc
+     * @param target
+     *            64 levels
+     * @param millis
+     */
+    public synchronized void tween(int enc, byte[] target, long millis) {
+        if (enc < 0 || enc >= encoders)
+            return;
+        int base = enc * LEDS;
+        step(enc, System.nanoTime());
+        for (int led = 0; led < LEDS; led++) {
+            from[base + led] = back[base + led];
+            to[base + led] = led < target.length ? clamp(target[led]) : 0;
+        }
+        tweenStart[enc] = System.nanoTime();
+        tweenLength[enc] = Math.max(1, millis * 1000000L);
+    }
+
+    /**
+     * advances the tweens and commits
+     */
+    public synchronized void animate() {
+        long now = System.nanoTime();
+        for (int enc = 0; enc < encoders; enc++)
+            step(enc, now);
+        commit();
+    }
+
+    private void step(int enc, long now) {
+        long length = tweenLength[enc];
+        if (length == 0)
+            return;
+        float t = (float) (now - tweenStart[enc]) / length;
+        if (t >= 1) {
+            t = 1;
+            tweenLength[enc] = 0;
+        }
+        int base = enc * LEDS;
+        for (int led = base; led < base + LEDS; led++)
+            back[led] = clamp(Math.round(from[led] + (to[led] - from[led]) * t));
+    }
+
+    /**
+     * calls {@link #animate()} fps times per second from a background thread
+     *
+     * @param fps
+     */
+    public void startAnimation(int fps) {
+        if (fps <= 0)
+            throw new IllegalArgumentException("fps must be positive: " + fps);
+        // the animation thread needs this buffer's lock: join it unlocked
+        for (;;) {
+            stopAnimation();
+            synchronized (this) {
+                // another caller may have started one meanwhile
+                if (thread != null)
+                    continue;
+                period = 1000000000L / fps;
+                thread = new Thread(this, "serialosc-ring " + device.getPrefix());
+                thread.setDaemon(true);
+                thread.start();
+                return;
+            }
+        }
+    }
+
+    public void stopAnimation() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long next = System.nanoTime();
+        // a thread stopped and not yet joined exits even when a new one
+        // has been started meanwhile
+        while (thread == Thread.currentThread()) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            animate();
+            next += period;
+            if (next < System.nanoTime())
+                next = System.nanoTime() + period;
+        }
+    }
+
+    // output
+
+    /**
+     * sends the rings that differ from the last committed ones
+     */
+    public synchronized void commit() {
+        RingCommands ring = device.ring;
+        for (int enc = 0; enc < encoders; enc++) {
+            int base = enc * LEDS;
+            boolean changed = !valid[enc], uniform = true;
+            for (int led = base; led < base + LEDS; led++) {
+                changed |= back[led] != front[led];
+                uniform &= back[led] == back[base];
+            }
+            if (!changed)
+                continue;
+            if (uniform) {
+                ring.all(enc, back[base]);
+            } else if (runsCost(enc) < costMap) {
+                sendRuns(enc);
+            } else {
+                System.arraycopy(back, base, map, 0, LEDS);
+                ring.map(enc, map);
+            }
+            System.arraycopy(back, base, front, base, LEDS);
+            valid[enc] = true;
+        }
+    }
+
+    // cost of sending every run of equal levels holding a change
+    private int runsCost(int enc) {
+        int base = enc * LEDS, cost = 0;
+        for (int start = 0, end; start < LEDS; start = end) {
+            boolean changed = false;
+            for (end = start; end < LEDS && back[base + end] == back[base + start]; end++)
+                changed |= !valid[enc] || back[base + end] != front[base + end];
+            if (changed)
+                cost += end - start == 1 ? costSet : costRange;
+            if (cost >= costMap)
+                break;
+        }
+        return cost;
+    }
+
+    private void sendRuns(int enc) {
+        RingCommands ring = device.ring;
+        int base = enc * LEDS;
+        for (int start = 0, end; start < LEDS; start = end) {
+            boolean changed = false;
+            for (end = start; end < LEDS && back[base + end] == back[base + start]; end++)
+                changed |= !valid[enc] || back[base + end] != front[base + end];
+            if (!changed)
+                continue;
+            if (end - start == 1)
+                ring.set(enc, start, back[base + start]);
+            else
+                ring.range(enc, start, end - 1, back[base + start]);
+        }
+    }
+}
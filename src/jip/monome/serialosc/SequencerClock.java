@@ -0,0 +1,287 @@
+package jip.monome.serialosc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fixed step clock for sequencers, shared by the apps of a JVM instead of
+ * one sleep loop each.
+ *
+ * Tick times are computed from the clock origin (tick n is due at origin + n
+ * periods), so errors never add up. The clock thread parks until shortly
+ * before a tick and spins the rest of the way, which is far more accurate
+ * than sleeping alone.
+ *
+ * Listeners are called {@link #setLookahead(long) lookahead} before a tick,
+ * with the batches of the devices added to the clock open; the batches are
+ * flushed when the tick is due, so whatever the listeners drew reaches the
+ * devices together and on time, however long drawing took. Ticks already
+ * late by a whole period are skipped and counted.
+ *
+ * The timing error of every tick is recorded in a {@link LatencyHistogram}.
+ *
+ * @author jip
+ *
+ */
+public class SequencerClock implements Runnable {
+    static final Logger logger = Logger.getLogger(SequencerClock.class.getName());
+
+    public static final double DEFAULT_BPM = 120;
+    // ticks per beat, i.e. 16th notes
+    public static final int DEFAULT_SUBDIVISIONS = 4;
+    // nanoseconds spun before a tick instead of parked
+    public static final long DEFAULT_SPIN = 200000;
+    // nanoseconds between the listeners and the tick
+    public static final long DEFAULT_LOOKAHEAD = 1000000;
+
+    private volatile double bpm;
+    private volatile int subdivisions;
+    private volatile long spin = DEFAULT_SPIN, lookahead = DEFAULT_LOOKAHEAD;
+
+    // copied on write, read by the clock thread
+    private volatile ClockListener[] listeners = new ClockListener[0];
+    private volatile MonomeDevice[] devices = new MonomeDevice[0];
+
+    private final LatencyHistogram jitter = new LatencyHistogram();
+    private final LatencyHistogram compute = new LatencyHistogram();
+    private volatile long tick, missed, overruns;
+
+    private Thread thread;
+    private volatile boolean running;
+
+    public SequencerClock() {
+        this(DEFAULT_BPM, DEFAULT_SUBDIVISIONS);
+    }
+
+    /**
+     * @param bpm
+     *            beats per minute
+     * @param subdivisions
+     *            ticks per beat
+     */
+    public SequencerClock(double bpm, int subdivisions) {
+        setBpm(bpm);
+        setSubdivisions(subdivisions);
+    }
+
+    /**
+     * changes the tempo from the next tick on
+     *
+     * @param bpm
+     */
+    public void setBpm(double bpm) {
+        if (!(bpm > 0))
+            throw new IllegalArgumentException("bpm must be positive: " + bpm);
+        this.bpm = bpm;
+    }
+
+    public double getBpm() {
+        return bpm;
+    }
+
+    public void setSubdivisions(int subdivisions) {
+        if (subdivisions <= 0)
+            throw new IllegalArgumentException("subdivisions must be positive: " + subdivisions);
+        this.subdivisions = subdivisions;
+    }
+
+    public int getSubdivisions() {
+        return subdivisions;
+    }
+
+    /**
+     * @return nanoseconds between two ticks
+     */
+    public double getPeriod() {
+        return 60e9 / (bpm * subdivisions);
+    }
+
+    /**
+     * @param nanos
+     *            time spun before each tick; longer is more accurate and
+     *            burns more cpu
+     */
+    public void setSpin(long nanos) {
+        this.spin = Math.max(0, nanos);
+    }
+
+    /**
+     * @param nanos
+     *            time given to the listeners to draw before each tick
+     */
+    public void setLookahead(long nanos) {
+        this.lookahead = Math.max(0, nanos);
+    }
+
+    public synchronized void addListener(ClockListener l) {
+        ClockListener[] ls = Arrays.copyOf(listeners, listeners.length + 1);
+        ls[ls.length - 1] = l;
+        listeners = ls;
+    }
+
+    public synchronized void removeListener(ClockListener l) {
+        List<ClockListener> ls = new ArrayList<ClockListener>(Arrays.asList(listeners));
+        if (ls.remove(l))
+            listeners = ls.toArray(new ClockListener[ls.size()]);
+    }
+
+    /**
+     * batches the output of a device, sending it on ticks. Commands sent by
+     * other threads while a batch is open go out with the tick too.
+     *
+     * @param device
+     */
+    public synchronized void addDevice(MonomeDevice device) {
+        MonomeDevice[] ds = Arrays.copyOf(devices, devices.length + 1);
+        ds[ds.length - 1] = device;
+        devices = ds;
+    }
+
+    public synchronized void removeDevice(MonomeDevice device) {
+        List<MonomeDevice> ds = new ArrayList<MonomeDevice>(Arrays.asList(devices));
+        if (ds.remove(device))
+            devices = ds.toArray(new MonomeDevice[ds.size()]);
+    }
+
+    public synchronized void start() {
+        if (running)
+            return;
+        running = true;
+        thread = new Thread(this, "serialosc-clock");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the next tick to be sent
+     */
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * @return nanoseconds between the tick times and the flushes of the
+     *         device batches
+     */
+    public LatencyHistogram getJitter() {
+        return jitter;
+    }
+
+    /**
+     * @return nanoseconds taken by the listeners on each tick
+     */
+    public LatencyHistogram getComputeTime() {
+        return compute;
+    }
+
+    /**
+     * @return ticks skipped because the clock was a whole period late
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    /**
+     * @return ticks whose listeners took longer than the lookahead
+     */
+    public long getOverruns() {
+        return overruns;
+    }
+
+    public void resetStats() {
+        jitter.reset();
+        compute.reset();
+        missed = 0;
+        overruns = 0;
+    }
+
+    @Override
+    public void run() {
+        double period = getPeriod();
+        long origin = System.nanoTime() + lookahead, base = 0, n = 0;
+        tick = 0;
+        while (running) {
+            long due = origin + (long) ((n - base) * period);
+            long late = System.nanoTime() - due;
+            if (late >= period) {
+                long skip = (long) (late / period) + 1;
+                n += skip;
+                missed += skip;
+                tick = n;
+                continue;
+            }
+
+            await(due - lookahead);
+            if (!running)
+                break;
+            MonomeDevice[] ds = devices;
+            for (MonomeDevice d : ds)
+                d.beginBatch();
+            long start = System.nanoTime();
+            for (ClockListener l : listeners) {
+                try {
+                    l.tick(n, due);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "clock listener failed", e);
+                }
+            }
+            long end = System.nanoTime();
+            compute.record(end - start);
+            if (end > due)
+                overruns++;
+
+            await(due);
+            if (running)
+                jitter.record(System.nanoTime() - due);
+            for (MonomeDevice d : ds)
+                d.flush();
+            tick = ++n;
+
+            // a new tempo starts from this tick
+            double p = getPeriod();
+            if (p != period) {
+                origin = due;
+                base = n - 1;
+                period = p;
+            }
+        }
+    }
+
+    // parks until shortly before target, then spins
+    private void await(long target) {
+        for (;;) {
+            long left = target - System.nanoTime();
+            if (left <= 0 || !running)
+                return;
+            long s = spin;
+            if (left > s)
+                LockSupport.parkNanos(this, left - s);
+        }
+    }
+}
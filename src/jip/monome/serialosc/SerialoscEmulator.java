@@ -0,0 +1,511 @@
+package jip.monome.serialosc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-process stand-in for a serialosc device server, over loopback UDP.
+ *
+ * It answers the /sys messages like serialosc does, keeps the led, ring and
+ * tilt state it is sent, and can send storms of synthetic key, encoder and
+ * tilt events at set rates. Together with
+ * {@link MonomeDevice#MonomeDevice(InetSocketAddress, String, String, int)}
+ * it runs a client without a device, serialosc or bonjour, to measure its
+ * throughput, drops and latency.
+ *
+ * @author jip
+ *
+ */
+public class SerialoscEmulator implements OscDecoder.Handler, Runnable {
+    public static final String DEFAULT_ID = "m0000000";
+
+    // led messages, in the order of their addresses
+    private static final String[] LED_MESSAGES = { GridCommands.MSG_SET, GridCommands.MSG_ALL,
+            GridCommands.MSG_MAP, GridCommands.MSG_ROW, GridCommands.MSG_COL, GridCommands.MSG_INT,
+            GridCommands.MSG_LEVEL_SET, GridCommands.MSG_LEVEL_ALL, GridCommands.MSG_LEVEL_MAP,
+            GridCommands.MSG_LEVEL_ROW, GridCommands.MSG_LEVEL_COL, RingCommands.MSG_SET, RingCommands.MSG_ALL,
+            RingCommands.MSG_MAP, RingCommands.MSG_RANGE, TiltCommands.MSG_SET };
+    private static final int SET = 0, ALL = 1, MAP = 2, ROW = 3, COL = 4, INTENSITY = 5, LEVEL_SET = 6,
+            LEVEL_ALL = 7, LEVEL_MAP = 8, LEVEL_ROW = 9, LEVEL_COL = 10, RING_SET = 11, RING_ALL = 12,
+            RING_MAP = 13, RING_RANGE = 14, TILT_SET = 15;
+
+    private final String id;
+    private final int width, height, encoders, sensors;
+    private final DatagramChannel channel;
+    private final OscReceiver in;
+    private final OscEncoder out;
+
+    // state set by the app
+    private volatile String prefix = MonomeDevice.DEFAULT_PREFIX, host = MonomeDevice.DEFAULT_HOST;
+    private volatile int port = -1, rotation;
+    private volatile byte[][] addrLed = addresses(MonomeDevice.DEFAULT_PREFIX);
+    private volatile byte[] addrKey, addrTilt, addrEncd, addrEnck;
+
+    // led state, guarded by this
+    private final byte[] levels, rings;
+    private int intensity = 15, tiltActive;
+
+    // time each injected key was sent, until a led message covers it
+    private final long[] keySent;
+    private final LatencyHistogram echoLatency = new LatencyHistogram();
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong[] receivedByType = new AtomicLong[LED_MESSAGES.length];
+    private final AtomicLong sent = new AtomicLong(), notSent = new AtomicLong();
+
+    // called after every led, ring or tilt message, when set
+    volatile Runnable changed;
+
+    // storms
+    private final Object stormLock = new Object();
+    private Thread storm;
+    private volatile boolean storming;
+    private int keyRate, encRate, tiltRate;
+
+    /**
+     * a 16x16 grid with an arc of 4 encoders and a tilt sensor
+     *
+     * @throws IOException
+     */
+    public SerialoscEmulator() throws IOException {
+        this(DEFAULT_ID, 16, 16, 4, 1);
+    }
+
+    /**
+     * @param id
+     *            serial id answered to /sys/info
+     * @param width
+     *            grid size, 0 for an arc only
+     * @param height
+     * @param encoders
+     *            arc encoders, 0 for a grid only
+     * @param sensors
+     *            tilt sensors
+     * @throws IOException
+     */
+    public SerialoscEmulator(String id, int width, int height, int encoders, int sensors) throws IOException {
+        this.id = id;
+        this.width = width;
+        this.height = height;
+        this.encoders = encoders;
+        this.sensors = sensors;
+        levels = new byte[width * height];
+        rings = new byte[encoders * 64];
+        keySent = new long[width * height];
+        for (int i = 0; i < receivedByType.length; i++)
+            receivedByType[i] = new AtomicLong();
+        setPrefix(prefix);
+
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        out = new OscEncoder(channel, null);
+        in = new OscReceiver(channel, this);
+        in.startListening("serialosc-emulator " + id);
+    }
+
+    /**
+     * @return the address to connect a {@link MonomeDevice} to
+     */
+    public InetSocketAddress getAddress() {
+        return new InetSocketAddress("127.0.0.1", channel.socket().getLocalPort());
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    private static byte[][] addresses(String prefix) {
+        byte[][] a = new byte[LED_MESSAGES.length][];
+        for (int i = 0; i < a.length; i++)
+            a[i] = OscEncoder.address(prefix + LED_MESSAGES[i]);
+        return a;
+    }
+
+    private void setPrefix(String p) {
+        addrKey = OscEncoder.address(p + MonomeDevice.MSG_IN_GRID);
+        addrTilt = OscEncoder.address(p + MonomeDevice.MSG_IN_TILT);
+        addrEncd = OscEncoder.address(p + MonomeDevice.MSG_IN_ENCD);
+        addrEnck = OscEncoder.address(p + MonomeDevice.MSG_IN_ENCK);
+        addrLed = addresses(p);
+        prefix = p;
+    }
+
+    private void retarget() {
+        if (port > 0)
+            out.target = new InetSocketAddress(host, port);
+    }
+
+    // OscDecoder.Handler interface
+    @Override
+    public void accept(OscDecoder msg) {
+        received.incrementAndGet();
+        if (msg.is(MonomeDevice.ADDR_PORT)) {
+            port = msg.getInt(0);
+            retarget();
+        } else if (msg.is(MonomeDevice.ADDR_HOST)) {
+            host = msg.getString(0);
+            retarget();
+        } else if (msg.is(MonomeDevice.ADDR_PREFIX)) {
+            setPrefix(msg.getString(0));
+        } else if (msg.is(MonomeDevice.ADDR_ROTATION)) {
+            rotation = msg.getInt(0);
+        } else if (msg.is(MonomeDevice.ADDR_INFO)) {
+            info();
+        } else {
+            byte[][] addr = addrLed;
+            for (int t = 0; t < addr.length; t++) {
+                if (msg.is(addr[t])) {
+                    receivedByType[t].incrementAndGet();
+                    led(t, msg);
+                    Runnable r = changed;
+                    if (r != null)
+                        r.run();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void info() {
+        if (out.target == null)
+            return;
+        out.beginBatch();
+        out.send(MonomeDevice.ADDR_ID, id);
+        out.send(MonomeDevice.ADDR_SIZE, width, height);
+        out.send(MonomeDevice.ADDR_HOST, host);
+        out.send(MonomeDevice.ADDR_PORT, port);
+        out.send(MonomeDevice.ADDR_PREFIX, prefix);
+        out.send(MonomeDevice.ADDR_ROTATION, rotation);
+        out.flushBatch();
+    }
+
+    private synchronized void led(int type, OscDecoder msg) {
+        int n = msg.getArgCount();
+        switch (type) {
+        case SET:
+        case LEVEL_SET:
+            level(msg.getInt(0), msg.getInt(1), type == SET ? msg.getInt(2) * 15 : msg.getInt(2));
+            break;
+        case ALL:
+        case LEVEL_ALL:
+            for (int y = 0; y < height; y++)
+                for (int x = 0; x < width; x++)
+                    level(x, y, type == ALL ? msg.getInt(0) * 15 : msg.getInt(0));
+            break;
+        case MAP:
+            for (int r = 0; r < 8 && r + 2 < n; r++)
+                for (int c = 0; c < 8; c++)
+                    level(msg.getInt(0) + c, msg.getInt(1) + r, ((msg.getInt(r + 2) >> c) & 1) * 15);
+            break;
+        case ROW:
+            for (int i = 2; i < n; i++)
+                for (int c = 0; c < 8; c++)
+                    level(msg.getInt(0) + (i - 2) * 8 + c, msg.getInt(1), ((msg.getInt(i) >> c) & 1) * 15);
+            break;
+        case COL:
+            for (int i = 2; i < n; i++)
+                for (int r = 0; r < 8; r++)
+                    level(msg.getInt(0), msg.getInt(1) + (i - 2) * 8 + r, ((msg.getInt(i) >> r) & 1) * 15);
+            break;
+        case INTENSITY:
+            intensity = msg.getInt(0);
+            break;
+        case LEVEL_MAP:
+            for (int i = 2; i < n && i < 66; i++)
+                level(msg.getInt(0) + ((i - 2) & 7), msg.getInt(1) + ((i - 2) >> 3), msg.getInt(i));
+            break;
+        case LEVEL_ROW:
+            for (int i = 2; i < n; i++)
+                level(msg.getInt(0) + i - 2, msg.getInt(1), msg.getInt(i));
+            break;
+        case LEVEL_COL:
+            for (int i = 2; i < n; i++)
+                level(msg.getInt(0), msg.getInt(1) + i - 2, msg.getInt(i));
+            break;
+        case RING_SET:
+            ring(msg.getInt(0), msg.getInt(1), msg.getInt(2));
+            break;
+        case RING_ALL:
+            for (int led = 0; led < 64; led++)
+                ring(msg.getInt(0), led, msg.getInt(1));
+            break;
+        case RING_MAP:
+            for (int led = 0; led < 64 && led + 1 < n; led++)
+                ring(msg.getInt(0), led, msg.getInt(led + 1));
+            break;
+        case RING_RANGE:
+            for (int i = 0, len = ((msg.getInt(2) - msg.getInt(1)) & 63) + 1; i < len; i++)
+                ring(msg.getInt(0), msg.getInt(1) + i, msg.getInt(3));
+            break;
+        case TILT_SET:
+            int s = msg.getInt(0);
+            if (s >= 0 && s < sensors)
+                tiltActive = msg.getInt(1) != 0 ? tiltActive | 1 << s : tiltActive & ~(1 << s);
+            break;
+        }
+    }
+
+    private void level(int x, int y, int l) {
+        if (x < 0 || y < 0 || x >= width || y >= height)
+            return;
+        int i = y * width + x;
+        levels[i] = (byte) l;
+        long t = keySent[i];
+        if (t != 0) {
+            keySent[i] = 0;
+            echoLatency.record(System.nanoTime() - t);
+        }
+    }
+
+    private void ring(int enc, int led, int l) {
+        if (enc >= 0 && enc < encoders)
+            rings[enc * 64 + (led & 63)] = (byte) l;
+    }
+
+    // recorded state
+
+    /**
+     * @return the grid led level (0-15) last set at x, y
+     */
+    public synchronized int getLevel(int x, int y) {
+        return levels[y * width + x];
+    }
+
+    public synchronized int getRing(int enc, int led) {
+        return rings[enc * 64 + (led & 63)];
+    }
+
+    /**
+     * copies the grid levels, row by row
+     */
+    synchronized void copyLevels(byte[] out) {
+        System.arraycopy(levels, 0, out, 0, levels.length);
+    }
+
+    /**
+     * copies the ring levels, 64 per encoder
+     */
+    synchronized void copyRings(byte[] out) {
+        System.arraycopy(rings, 0, out, 0, rings.length);
+    }
+
+    /**
+     * @return true once a ring message was received
+     */
+    boolean hasRings() {
+        for (int t = RING_SET; t <= RING_RANGE; t++) {
+            if (receivedByType[t].get() > 0)
+                return true;
+        }
+        return false;
+    }
+
+    public synchronized int getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * @return true once an intensity message was received
+     */
+    boolean hasIntensity() {
+        return receivedByType[INTENSITY].get() > 0;
+    }
+
+    /**
+     * @return bit n set if tilt sensor n is active
+     */
+    synchronized int getTiltActive() {
+        return tiltActive;
+    }
+
+    public synchronized boolean isTiltActive(int sensor) {
+        return (tiltActive & (1 << sensor)) != 0;
+    }
+
+    /**
+     * @return every message received, /sys ones included
+     */
+    public long getReceived() {
+        return received.get();
+    }
+
+    /**
+     * @param message
+     *            a led, ring or tilt message without prefix, e.g.
+     *            {@link GridCommands#MSG_SET}
+     * @return the number received
+     */
+    public long getReceived(String message) {
+        for (int t = 0; t < LED_MESSAGES.length; t++) {
+            if (LED_MESSAGES[t].equals(message))
+                return receivedByType[t].get();
+        }
+        return 0;
+    }
+
+    /**
+     * @return events sent to the app
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return events not sent because the app port is unknown yet, or
+     *         because the storm couldn't keep the rate
+     */
+    public long getNotSent() {
+        return notSent.get();
+    }
+
+    /**
+     * time from an injected key press to the first led message setting
+     * that key
+     */
+    public LatencyHistogram getEchoLatency() {
+        return echoLatency;
+    }
+
+    // events
+
+    public void key(int x, int y, int s) {
+        if (s != 0 && x >= 0 && y >= 0 && x < width && y < height) {
+            synchronized (this) {
+                keySent[y * width + x] = System.nanoTime();
+            }
+        }
+        send(addrKey, x, y, s, 0, 3);
+    }
+
+    public void delta(int enc, int delta) {
+        send(addrEncd, enc, delta, 0, 0, 2);
+    }
+
+    public void encKey(int enc, int s) {
+        send(addrEnck, enc, s, 0, 0, 2);
+    }
+
+    public void tilt(int sensor, int x, int y, int z) {
+        send(addrTilt, sensor, x, y, z, 4);
+    }
+
+    private void send(byte[] address, int a, int b, int c, int d, int argc) {
+        if (out.target == null) {
+            notSent.incrementAndGet();
+            return;
+        }
+        if (argc == 2)
+            out.send(address, a, b);
+        else if (argc == 3)
+            out.send(address, a, b, c);
+        else
+            out.send(address, a, b, c, d);
+        sent.incrementAndGet();
+    }
+
+    /**
+     * sends events from a background thread at the given rates, in events
+     * per second (0 for none). Keys are pressed and released at random
+     * places, encoders turned by one tick and active tilt sensors moved.
+     * Replaces the running storm, if any.
+     *
+     * @param keyRate
+     * @param encRate
+     * @param tiltRate
+     */
+    public void startStorm(int keyRate, int encRate, int tiltRate) {
+        stopStorm();
+        // not this: the storm thread locks it to record keys
+        synchronized (stormLock) {
+            this.keyRate = keyRate;
+            this.encRate = encRate;
+            this.tiltRate = tiltRate;
+            storming = true;
+            storm = new Thread(this, "serialosc-storm " + id);
+            storm.setDaemon(true);
+            storm.start();
+        }
+    }
+
+    public void stopStorm() {
+        Thread t;
+        synchronized (stormLock) {
+            storming = false;
+            t = storm;
+            storm = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        int[] rates = { keyRate, encRate, tiltRate };
+        long[] done = new long[rates.length];
+        while (storming) {
+            long elapsed = System.nanoTime() - start;
+            for (int s = 0; s < rates.length; s++) {
+                if (rates[s] <= 0)
+                    continue;
+                // events due by now; when late by more than a 10ms burst,
+                // the rest is skipped and counted
+                long due = rates[s] * elapsed / 1000000000L - done[s], burst = rates[s] / 100 + 1;
+                if (due > burst) {
+                    notSent.addAndGet(due - burst);
+                    done[s] += due - burst;
+                    due = burst;
+                }
+                for (; due > 0; due--)
+                    emit(s, done[s]++);
+            }
+            LockSupport.parkNanos(this, 100000);
+        }
+    }
+
+    private int random = 0x2545F491;
+
+    // sends the nth event of a storm
+    private void emit(int stream, long n) {
+        if (stream == 0 && width > 0) {
+            random ^= random << 13;
+            random ^= random >>> 17;
+            random ^= random << 5;
+            int x = (random & 0xffff) % width, y = (random >>> 16) % height;
+            key(x, y, 1);
+            key(x, y, 0);
+        } else if (stream == 1 && encoders > 0) {
+            delta((int) (n % encoders), (n & 64) == 0 ? 1 : -1);
+        } else if (stream == 2 && sensors > 0) {
+            int s = (int) (n % sensors);
+            if (isTiltActive(s))
+                tilt(s, (int) (n & 255), 128, 128);
+        }
+    }
+
+    public void close() {
+        stopStorm();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Do nothing
+        }
+    }
+}
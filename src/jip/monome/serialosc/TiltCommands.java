@@ -1,30 +1,21 @@
 package jip.monome.serialosc;
 
-import java.io.IOException;
-
-import com.illposed.osc.OSCMessage;
-
 public class TiltCommands {
     public static final String MSG_SET = "/tilt/set";
     private MonomeDevice device;
-    
+
+    // pre-encoded address
+    private final byte[] addrSet;
+
     public TiltCommands(MonomeDevice m){
         this.device = m;
+        this.addrSet = OscEncoder.address(device.prefix + MSG_SET);
+        device.out.coalesce(addrSet, 1);
+        device.out.family(addrSet, DeviceMetrics.TILT);
     }
-    
+
     public void set(int sensor, int active) {
-        OSCMessage msg = new OSCMessage();
-        msg.setAddress(device.prefix + MSG_SET);
-        msg.addArgument(new Integer(sensor));
-        msg.addArgument(new Integer(active));
-        send(msg);
-    } 
-    
-    private void send(OSCMessage msg) {
-        try {
-            device.OSCout.send(msg);
-        } catch (IOException e) {
-            // Do nothing
-        }
+        device.shadow.tilt(sensor, active);
+        device.out.send(addrSet, sensor, active);
     }
 }
@@ -0,0 +1,232 @@
+package jip.monome.serialosc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Smooths and thins out tilt samples before they reach a listener.
+ *
+ * Registered as a {@link TiltListener}, it runs every axis of every sensor
+ * through a one euro filter (an adaptive low pass: steady cutoff at rest,
+ * opened up as the sensor moves, so it's smooth without lagging; a beta of
+ * 0 makes it a plain low pass), holds back changes within a deadband, and
+ * calls the wrapped listener at most rate times per second per sensor.
+ * Samples held back aren't lost: the latest value is sent from a delivery
+ * thread when the period ends, or, within the deadband, once the sensor has
+ * been quiet for the settle time. All state is preallocated, samples don't
+ * allocate.
+ *
+ * @author jip
+ *
+ */
+public class TiltFilter implements TiltListener, Runnable {
+    public static final double DEFAULT_MIN_CUTOFF = 1, DEFAULT_BETA = 0.01, DEFAULT_DCUTOFF = 1;
+    public static final int DEFAULT_RATE = 60;
+    public static final long DEFAULT_SETTLE = 100;
+    // most sensors in one device
+    public static final int MAX_SENSORS = 8;
+    private static final int AXES = 3;
+
+    private final TiltListener listener;
+
+    private volatile double minCutoff = DEFAULT_MIN_CUTOFF, beta = DEFAULT_BETA, dcutoff = DEFAULT_DCUTOFF;
+    private volatile int deadband;
+    private volatile long period, settle = DEFAULT_SETTLE * 1000000L;
+
+    // per sensor and axis state, guarded by this
+    private final double[] value = new double[MAX_SENSORS * AXES], slope = new double[MAX_SENSORS * AXES];
+    private final int[] sent = new int[MAX_SENSORS * AXES];
+    private final long[] lastSample = new long[MAX_SENSORS], lastSent = new long[MAX_SENSORS];
+    private final long[] deadline = new long[MAX_SENSORS];
+    private final boolean[] started = new boolean[MAX_SENSORS];
+    // sensors whose latest value wasn't sent
+    private int pending;
+
+    private Thread thread;
+    private boolean closed;
+
+    public TiltFilter(TiltListener listener) {
+        this.listener = listener;
+        setRate(DEFAULT_RATE);
+    }
+
+    /**
+     * @param minCutoff
+     *            cutoff frequency at rest, in Hz: lower is smoother
+     * @param beta
+     *            how much the cutoff opens with speed: higher lags less, 0
+     *            for a plain low pass
+     */
+    public void setFilter(double minCutoff, double beta) {
+        this.minCutoff = minCutoff;
+        this.beta = beta;
+    }
+
+    /**
+     * @param deadband
+     *            smallest change, on any axis, passed on
+     */
+    public void setDeadband(int deadband) {
+        this.deadband = deadband;
+    }
+
+    /**
+     * @param millis
+     *            how long a sensor must be quiet for a change within the
+     *            deadband to be sent
+     */
+    public void setSettle(long millis) {
+        this.settle = millis * 1000000L;
+    }
+
+    /**
+     * @param rate
+     *            max calls per second and sensor, 0 for every sample
+     */
+    public void setRate(int rate) {
+        period = rate > 0 ? 1000000000L / rate : 0;
+    }
+
+    /**
+     * forgets the filter state, the next samples start afresh
+     */
+    public synchronized void reset() {
+        for (int s = 0; s < MAX_SENSORS; s++)
+            started[s] = false;
+        pending = 0;
+    }
+
+    // smoothing factor of a first order low pass
+    private static double alpha(double cutoff, double dt) {
+        double tau = 1 / (2 * Math.PI * cutoff);
+        return 1 / (1 + tau / dt);
+    }
+
+    // TiltListener interface
+    @Override
+    public void tilt(int sensor, int x, int y, int z) {
+        if (sensor < 0 || sensor >= MAX_SENSORS)
+            return;
+        long now = System.nanoTime();
+        Thread wake = null;
+        synchronized (this) {
+            int i = sensor * AXES;
+            if (!started[sensor]) {
+                started[sensor] = true;
+                value[i] = x;
+                value[i + 1] = y;
+                value[i + 2] = z;
+                slope[i] = slope[i + 1] = slope[i + 2] = 0;
+                lastSample[sensor] = now;
+                send(sensor, now);
+                return;
+            }
+            double dt = Math.max(now - lastSample[sensor], 1000) / 1e9;
+            lastSample[sensor] = now;
+            filter(i, x, dt);
+            filter(i + 1, y, dt);
+            filter(i + 2, z, dt);
+            if (now - lastSent[sensor] < period) {
+                // too early: the latest value goes out when the period ends
+                wake = arm(sensor, lastSent[sensor] + period);
+            } else if (!flush(sensor, now)) {
+                wake = arm(sensor, now + settle);
+            }
+        }
+        if (wake != null)
+            LockSupport.unpark(wake);
+    }
+
+    // called holding the lock; sends the filtered value if it moved past
+    // the deadband, or at all once the sensor is quiet; false if it still
+    // differs from the value sent
+    private boolean flush(int sensor, long now) {
+        int i = sensor * AXES, db = deadband;
+        int fx = (int) Math.round(value[i]), fy = (int) Math.round(value[i + 1]),
+                fz = (int) Math.round(value[i + 2]);
+        int moved = Math.max(Math.abs(fx - sent[i]), Math.max(Math.abs(fy - sent[i + 1]), Math.abs(fz - sent[i + 2])));
+        if (moved == 0) {
+            pending &= ~(1 << sensor);
+            return true;
+        }
+        if (moved <= db && now - lastSample[sensor] < settle)
+            return false;
+        send(sensor, now);
+        return true;
+    }
+
+    // called holding the lock
+    private void send(int sensor, long now) {
+        int i = sensor * AXES;
+        sent[i] = (int) Math.round(value[i]);
+        sent[i + 1] = (int) Math.round(value[i + 1]);
+        sent[i + 2] = (int) Math.round(value[i + 2]);
+        lastSent[sensor] = now;
+        pending &= ~(1 << sensor);
+        listener.tilt(sensor, sent[i], sent[i + 1], sent[i + 2]);
+    }
+
+    // called holding the lock: the delivery thread to wake, if any
+    private Thread arm(int sensor, long time) {
+        pending |= 1 << sensor;
+        deadline[sensor] = time;
+        if (closed)
+            return null;
+        if (thread == null) {
+            thread = new Thread(this, "serialosc-tilt");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return thread;
+    }
+
+    /**
+     * stops the delivery thread; samples held back are dropped
+     */
+    public void close() {
+        Thread t;
+        synchronized (this) {
+            closed = true;
+            t = thread;
+            thread = null;
+        }
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long wait = Long.MAX_VALUE;
+            synchronized (this) {
+                if (closed)
+                    return;
+                long now = System.nanoTime();
+                for (int sensor = 0; sensor < MAX_SENSORS; sensor++) {
+                    if ((pending & (1 << sensor)) == 0)
+                        continue;
+                    if (deadline[sensor] - now <= 0 && !flush(sensor, now))
+                        deadline[sensor] = lastSample[sensor] + settle;
+                    if ((pending & (1 << sensor)) != 0)
+                        wait = Math.min(wait, deadline[sensor] - now);
+                }
+            }
+            if (wait == Long.MAX_VALUE)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, Math.max(wait, 1000));
+        }
+    }
+
+    private void filter(int i, int raw, double dt) {
+        double d = (raw - value[i]) / dt;
+        slope[i] += alpha(dcutoff, dt) * (d - slope[i]);
+        double cutoff = minCutoff + beta * Math.abs(slope[i]);
+        value[i] += alpha(cutoff, dt) * (raw - value[i]);
+    }
+}